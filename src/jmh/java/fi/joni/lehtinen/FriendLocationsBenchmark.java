@@ -0,0 +1,181 @@
+package fi.joni.lehtinen;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Writing friend locations of one CIRCLE_DATA reply from LocationTable compared to reading
+ * them with Query.CHANGED_LOCATIONS and with the FRIEND_LOCATIONS statement used before.
+ * Database benchmarks use the seeded schema of BenchmarkSchema and fail in setup when
+ * benchmark.url is not given. Run with
+ *
+ *   gradle jmh -Dbenchmark.url=jdbc:postgresql://localhost/bench
+ */
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class FriendLocationsBenchmark {
+
+    private static final String FRIEND_LOCATIONS = "SELECT * FROM \"FriendFinder\".location WHERE \"FriendFinder\".location.user_id <> ? AND \"FriendFinder\".location.user_id IN ( " +
+            "SELECT \"FriendFinder\".groupmembers.user_id FROM \"FriendFinder\".groupmembers WHERE group_id IN ( " +
+            "SELECT group_id FROM \"FriendFinder\".groupmembers WHERE user_id = ? AND confirmed = TRUE ) )";
+
+    // Friends of a seeded user
+    private static final int FRIENDS = BenchmarkSchema.CIRCLES_PER_USER * ( BenchmarkSchema.CIRCLE_SIZE - 1 );
+
+    // Requests are generated up front, setup per invocation would dwarf the table lookups
+    @State( Scope.Thread )
+    public static class Requests {
+        final long[] mUsers = new long[ 1024 ];
+        final long[][] mFriends = new long[ 1024 ][ FRIENDS ];
+        final BinaryReplyBuilder mReply = new BinaryReplyBuilder();
+        int mNext;
+
+        @Setup
+        public void generate() {
+            Random random = new Random( 1 );
+
+            for( int i = 0; i < mUsers.length; i++ ) {
+                mUsers[ i ] = 1 + random.nextInt( BenchmarkSchema.USERS );
+
+                for( int j = 0; j < FRIENDS; j++ )
+                    mFriends[ i ][ j ] = 1 + random.nextInt( BenchmarkSchema.USERS );
+            }
+        }
+
+        // Index of next request, reply is cleared for it
+        int next() {
+            mReply.reset();
+            return mNext = ( mNext + 1 ) & ( mUsers.length - 1 );
+        }
+
+        @TearDown
+        public void close() {
+            mReply.close();
+        }
+    }
+
+    @State( Scope.Benchmark )
+    public static class Table {
+
+        @Setup
+        public void fill() {
+            Random random = new Random( 2 );
+
+            for( long user = 1; user <= BenchmarkSchema.USERS; user++ )
+                LocationTable.instance.put( user, 60 + random.nextDouble(), 24 + random.nextDouble(), 10 + random.nextDouble() * 50, 1400000000000L + user, false );
+        }
+    }
+
+    @State( Scope.Thread )
+    public static class Database {
+        Connection mConnection;
+        boolean mCreated;
+        PreparedStatement mChanged;
+        PreparedStatement mFriendLocations;
+
+        @Setup
+        public void connect() throws SQLException {
+            mConnection = BenchmarkSchema.connect();
+
+            if( mConnection == null )
+                throw new IllegalStateException( "benchmark.url not given" );
+
+            mCreated = BenchmarkSchema.create( mConnection );
+            mChanged = mConnection.prepareStatement( Query.CHANGED_LOCATIONS.mSql );
+            mFriendLocations = mConnection.prepareStatement( FRIEND_LOCATIONS );
+        }
+
+        @TearDown
+        public void close() throws SQLException {
+            if( mConnection == null )
+                return;
+
+            mChanged.close();
+            mFriendLocations.close();
+
+            if( mCreated )
+                BenchmarkSchema.drop( mConnection );
+
+            mConnection.close();
+        }
+    }
+
+    @Benchmark
+    public BinaryReplyBuilder locationTable( Table table, Requests requests ) {
+        long[] friends = requests.mFriends[ requests.next() ];
+        BinaryReplyBuilder reply = requests.mReply;
+        reply.beginMessage();
+
+        for( long friend : friends )
+            LocationTable.instance.write( friend, reply );
+
+        reply.endMessage();
+        return reply;
+    }
+
+    @Benchmark
+    public BinaryReplyBuilder changedLocations( Database database, Requests requests ) throws SQLException {
+        long[] friends = requests.mFriends[ requests.next() ];
+        // DAO passes ids the same way
+        Long[] ids = new Long[ friends.length ];
+
+        for( int i = 0; i < ids.length; i++ )
+            ids[ i ] = friends[ i ];
+
+        Array array = database.mConnection.createArrayOf( "bigint", ids );
+        database.mChanged.setArray( 1, array );
+
+        try {
+            return write( database.mChanged, requests.mReply );
+        } finally {
+            array.free();
+        }
+    }
+
+    @Benchmark
+    public BinaryReplyBuilder friendLocations( Database database, Requests requests ) throws SQLException {
+        long user = requests.mUsers[ requests.next() ];
+        database.mFriendLocations.setLong( 1, user );
+        database.mFriendLocations.setLong( 2, user );
+
+        return write( database.mFriendLocations, requests.mReply );
+    }
+
+    private static BinaryReplyBuilder write( PreparedStatement statement, BinaryReplyBuilder reply ) throws SQLException {
+        reply.beginMessage();
+
+        try( ResultSet resultSet = statement.executeQuery() ) {
+            while( resultSet.next() ) {
+                reply.addId( resultSet.getLong( "user_id" ) )
+                        .addCoordinate( resultSet.getDouble( "latitude" ) )
+                        .addCoordinate( resultSet.getDouble( "longitude" ) )
+                        .addCoordinate( resultSet.getDouble( "accuracy" ) )
+                        .addTime( resultSet.getLong( "time_recorded" ) )
+                        .endRecord();
+            }
+        }
+
+        reply.endMessage();
+        return reply;
+    }
+}
@@ -3,42 +3,115 @@ package fi.joni.lehtinen;
 import javax.net.ssl.SSLContext;
 import java.io.IOException;
 import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
+import java.util.concurrent.ExecutorService;
 
 public class Acceptor implements Runnable {
 
+    private static final Log.Category LOG = Log.category( "connection" );
+
     private ServerSocketChannel mServerSocketChannel;
     private SSLContext mSSLContext;
-    private Dispatcher mDispatcher;
+    private Dispatcher[] mDispatchers;
+    private boolean mLeastLoaded;
+    private int mNextDispatcher = 0;
+    private ExecutorService mSessionExecutor;
+    private int mBatchSize = Configuration.instance.getInt( "acceptor.batchSize", 64 );
+
+    public Acceptor( ServerSocketChannel serverSocketChannel, SSLContext SSLContext, Dispatcher[] dispatchers ) {
+        mServerSocketChannel = serverSocketChannel;
+        mSSLContext = SSLContext;
+        mDispatchers = dispatchers;
+        mLeastLoaded = "least-loaded".equals( Configuration.instance.getString( "dispatcher.assignment", "round-robin" ) );
+    }
 
-    public Acceptor( ServerSocketChannel serverSocketChannel, SSLContext SSLContext, Dispatcher dispatcher ) {
+    /*
+     * Thread per session mode. Every accepted connection is served by its own thread
+     * from sessionExecutor instead of Dispatchers.
+     */
+    public Acceptor( ServerSocketChannel serverSocketChannel, SSLContext SSLContext, ExecutorService sessionExecutor ) {
         mServerSocketChannel = serverSocketChannel;
         mSSLContext = SSLContext;
-        mDispatcher = dispatcher;
+        mSessionExecutor = sessionExecutor;
     }
 
     public void run() {
+        Selector selector;
+
+        try {
+            selector = Selector.open();
+            mServerSocketChannel.configureBlocking( false );
+            mServerSocketChannel.register( selector, SelectionKey.OP_ACCEPT );
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+
         for (;;) {
             try {
-                SocketChannel socketChannel = mServerSocketChannel.accept();
-                SecureChannel secureChannel = new SecureChannel( socketChannel, mSSLContext );
+                selector.select();
+                selector.selectedKeys().clear();
+
+                accept( System.nanoTime() );
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /*
+     * Accepts at most mBatchSize pending connections. If more are waiting selector
+     * reports OP_ACCEPT again right away.
+     */
+    private void accept( long readyTime ) throws IOException {
+        for( int i = 0; i < mBatchSize; i++ ) {
+            SocketChannel socketChannel = mServerSocketChannel.accept();
+
+            if( socketChannel == null )
+                return;
+
+            try {
+                LOG.info( () -> "Connection accepted: " + socketChannel.socket().getRemoteSocketAddress() );
 
-                SessionHandler sessionHandler = new SessionHandler(secureChannel);
+                // SSLEngine and buffers are created lazily by the thread doing the handshake
+                if( mSessionExecutor != null ){
+                    mSessionExecutor.execute( new BlockingSessionHandler( new SecureChannel( socketChannel, mSSLContext, true ) ) );
+                } else {
+                    SessionHandler sessionHandler = new SessionHandler( new SecureChannel( socketChannel, mSSLContext ) );
 
-                // Add Dispatcher's selector to secure channel so that Dispatcher
-                // can be woken up when selectionkey interestops are changed
-                sessionHandler.setSelector( mDispatcher );
+                    Dispatcher dispatcher = nextDispatcher();
 
-                System.out.println( LocalDateTime.now().format( DateTimeFormatter.ISO_LOCAL_TIME ) + " => Connection accepted: " + socketChannel.getRemoteAddress());
+                    // Add Dispatcher to session handler so that session can hand itself back
+                    // to Dispatcher when selectionkey interestops are changed
+                    sessionHandler.setDispatcher( dispatcher );
 
-                mDispatcher.register(socketChannel, SelectionKey.OP_READ, sessionHandler);
+                    dispatcher.register( sessionHandler );
+                }
 
+                Metrics.increment( "acceptor.accepted" );
+                Metrics.record( "acceptor.latency.nanos", System.nanoTime() - readyTime );
             } catch (IOException e) {
                 e.printStackTrace();
+                socketChannel.close();
             }
         }
     }
+
+    private Dispatcher nextDispatcher(){
+        if( !mLeastLoaded ){
+            Dispatcher dispatcher = mDispatchers[ mNextDispatcher ];
+            mNextDispatcher = ( mNextDispatcher + 1 ) % mDispatchers.length;
+            return dispatcher;
+        }
+
+        Dispatcher leastLoaded = mDispatchers[ 0 ];
+        for( Dispatcher dispatcher : mDispatchers ){
+            if( dispatcher.getConnectionCount() < leastLoaded.getConnectionCount() )
+                leastLoaded = dispatcher;
+        }
+
+        return leastLoaded;
+    }
 }
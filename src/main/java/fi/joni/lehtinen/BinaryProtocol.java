@@ -0,0 +1,209 @@
+package fi.joni.lehtinen;
+
+import fi.joni.lehtinen.friendfinder.connectionprotocol.ConnectionProtocol;
+import fi.joni.lehtinen.friendfinder.connectionprotocol.Reply;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/*
+ * Compact binary wire format negotiated per connection. Client selects it by sending MAGIC
+ * as the very first byte of the connection followed by HELLO frame. Text requests always
+ * start with protocol name so old clients keep using the text protocol.
+ *
+ * Every frame is varint length, type byte and payload. Length covers type and payload.
+ * Ids are unsigned varints, coordinates 8 byte doubles and timestamps 8 byte longs, both
+ * big endian.
+ *
+ * HELLO        version byte, flags byte. Server answers with its version and accepted flags.
+ * LOCATION     varint user id, latitude, longitude, accuracy, timestamp
+ * LOCATION_BATCH
+ *              varint user id, varint count, then count times latitude, longitude, accuracy
+ *              and timestamp
+ * SUBSCRIBE    optional byte, 1 to subscribe to locations of circles (default) and 0 to stop
+ * CIRCLE_DATA  optional varint version of the last CIRCLE_DATA reply. With version the reply
+ *              starts with message of new version and content, see CircleVersions.
+ * other        fields of the text request in the same order, each as varint length and UTF-8
+ * REPLY        reply code byte, see REPLY_CODES, messages each as varint length and bytes. Length of
+ *              record message is padded to four bytes, so decoder must accept padded varints.
+ * REPLY_DEFLATE
+ *              varint length of the inflated REPLY frame body, then zlib stream of it. Used
+ *              when client has set FLAG_DEFLATE in HELLO and reply is above threshold.
+ * PUSH_LOCATION
+ *              sent by server to subscribed session when friend's location changes. Fields
+ *              like in LOCATION. Never between the frames of a reply.
+ */
+public class BinaryProtocol {
+
+    static final byte MAGIC = (byte)0xFF;
+    static final byte VERSION = 1;
+
+    static final int MAX_FRAME_LENGTH = 1 << 20;
+
+    // Frame types. Requests use the index of REQUEST_TYPES.
+    static final byte HELLO = 0;
+    static final byte LOGIN = 2;
+    static final byte REGISTER = 4;
+    static final byte LOCATION = 5;
+    static final byte CIRCLE_DATA = 13;
+    static final byte LOCATION_BATCH = 14;
+    static final byte SUBSCRIBE = 15;
+    static final byte REPLY = 64;
+    static final byte REPLY_DEFLATE = 65;
+    static final byte PUSH_LOCATION = 66;
+
+    // HELLO flags
+    static final int FLAG_DEFLATE = 0x01;
+
+    private static final ConnectionProtocol.Protocols[] REQUEST_TYPES = {
+        null,
+        ConnectionProtocol.Protocols.EMAIL_TAKEN,
+        ConnectionProtocol.Protocols.LOGIN,
+        ConnectionProtocol.Protocols.LOGIN_HASH,
+        ConnectionProtocol.Protocols.REGISTER,
+        ConnectionProtocol.Protocols.LOCATION,
+        ConnectionProtocol.Protocols.CREATE_CIRCLE,
+        ConnectionProtocol.Protocols.JOIN_REQUESTS,
+        ConnectionProtocol.Protocols.CONFIRM_JOIN_REQUEST,
+        ConnectionProtocol.Protocols.DECLINE_JOIN_REQUEST,
+        ConnectionProtocol.Protocols.ADD_CIRCLE_MEMBER,
+        ConnectionProtocol.Protocols.REMOVE_CIRCLE_MEMBER,
+        ConnectionProtocol.Protocols.DELETE_CIRCLE,
+        ConnectionProtocol.Protocols.CIRCLE_DATA
+    };
+
+    // Reply codes by their byte on the wire. Listed here so that changes to ReplyCode in
+    // connectionprotocol don't change binary replies.
+    private static final Reply.ReplyCode[] REPLY_CODES = {
+        Reply.ReplyCode.EMAIL_TAKEN,
+        Reply.ReplyCode.CREDENTIAL_ERROR_EMAIL,
+        Reply.ReplyCode.LOGIN_SUCCESSFUL,
+        Reply.ReplyCode.CREDENTIAL_ERROR_PASSWORD,
+        Reply.ReplyCode.REGISTERATION_SUCCESSFUL,
+        Reply.ReplyCode.UNKNOWN_ERROR,
+        Reply.ReplyCode.NOT_LOGGED_IN,
+        Reply.ReplyCode.WRONG_USER_ID,
+        Reply.ReplyCode.LOCATION_TRANSFER_SUCCESS,
+        Reply.ReplyCode.CIRCLE_CREATE_SUCCESSFUL,
+        Reply.ReplyCode.JOIN_REQUEST_SUCCESSFUL,
+        Reply.ReplyCode.JOIN_REQUEST_CONFIRMED_SUCCESSFULLY,
+        Reply.ReplyCode.JOIN_REQUEST_ERROR,
+        Reply.ReplyCode.JOIN_REQUEST_DECLINED_SUCCESSFULLY,
+        Reply.ReplyCode.ADD_FRIEND_SUCCESSFUL,
+        Reply.ReplyCode.NOT_PART_OF_CIRCLE,
+        Reply.ReplyCode.FRIEND_NOT_FOUND,
+        Reply.ReplyCode.REMOVE_FRIEND_SUCCESSFUL,
+        Reply.ReplyCode.CIRCLE_DELETE_SUCCESSFUL,
+        Reply.ReplyCode.DATA_REQUEST_SUCCESSFUL,
+        Reply.ReplyCode.DATA_REQUEST_ERROR,
+        Reply.ReplyCode.UNKNOWN_REQUEST_FORMAT
+    };
+
+    // Byte of every ReplyCode by ordinal. Code missing from REPLY_CODES goes as UNKNOWN_ERROR.
+    private static final byte[] REPLY_CODE_BYTES = replyCodeBytes();
+
+    /*
+     * Returns protocol of request frame type or null if type is not a request.
+     */
+    static ConnectionProtocol.Protocols getProtocol( byte type ) {
+        return type > 0 && type < REQUEST_TYPES.length ? REQUEST_TYPES[ type ] : null;
+    }
+
+    /*
+     * Returns byte of reply code in REPLY frame.
+     */
+    static byte getReplyCode( Reply.ReplyCode code ) {
+        return REPLY_CODE_BYTES[ code.ordinal() ];
+    }
+
+    private static byte[] replyCodeBytes() {
+        byte[] bytes = new byte[ Reply.ReplyCode.values().length ];
+        Arrays.fill( bytes, (byte)Arrays.asList( REPLY_CODES ).indexOf( Reply.ReplyCode.UNKNOWN_ERROR ) );
+
+        for( byte i = 0; i < REPLY_CODES.length; i++ )
+            bytes[ REPLY_CODES[ i ].ordinal() ] = i;
+
+        return bytes;
+    }
+
+    /*
+     * Returns index of the last byte of frame starting at from or -1 if buffer doesn't hold
+     * the whole frame yet. Absolute, buffer's position is not moved.
+     */
+    static int frameEnd( ByteBuffer bb, int from, int to ) {
+        int length = 0;
+        int shift = 0;
+        int i = from;
+
+        for(;;) {
+            if( i >= to )
+                return -1;
+
+            byte b = bb.get( i++ );
+            length |= ( b & 0x7F ) << shift;
+
+            if( b >= 0 )
+                break;
+
+            shift += 7;
+
+            if( shift > 21 )
+                throw new IllegalArgumentException( "Malformed frame length" );
+        }
+
+        if( length == 0 || length > MAX_FRAME_LENGTH )
+            throw new IllegalArgumentException( "Bad frame length " + length );
+
+        int end = i + length - 1;
+        return end < to ? end : -1;
+    }
+
+    static long getVarLong( ByteBuffer bb ) {
+        long value = 0;
+
+        for( int shift = 0; shift < 64; shift += 7 ) {
+            byte b = bb.get();
+            value |= (long)( b & 0x7F ) << shift;
+
+            if( b >= 0 )
+                return value;
+        }
+
+        throw new IllegalArgumentException( "Malformed varint" );
+    }
+
+    /*
+     * True when a complete varint that fits in long starts at position of bb. Checked before
+     * getVarLong when bytes come from client.
+     */
+    static boolean hasVarLong( ByteBuffer bb ) {
+        int end = Math.min( bb.limit(), bb.position() + 10 );
+
+        for( int i = bb.position(); i < end; i++ ) {
+            if( bb.get( i ) >= 0 )
+                return true;
+        }
+
+        return false;
+    }
+
+    static void putVarLong( ByteBuffer bb, long value ) {
+        while( ( value & ~0x7FL ) != 0 ) {
+            bb.put( (byte)( ( value & 0x7F ) | 0x80 ) );
+            value >>>= 7;
+        }
+
+        bb.put( (byte)value );
+    }
+
+    static int varLongSize( long value ) {
+        int size = 1;
+
+        while( ( value & ~0x7FL ) != 0 ) {
+            value >>>= 7;
+            size++;
+        }
+
+        return size;
+    }
+}
@@ -0,0 +1,280 @@
+package fi.joni.lehtinen;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+
+/*
+ * Reply in the binary protocol. Frame is serialized straight into pooled outbound buffer
+ * that is reused for every reply of the session, so returned buffer is valid only until
+ * reset is called. Buffer is given back with releaseBuffer once reply has been written.
+ *
+ * Record message has no separators. Every field is either varint, fixed width or length
+ * prefixed and client knows the fields of each message.
+ *
+ * When compression has been negotiated replies above threshold are deflated with Deflater
+ * of the session. Scratch arrays for Deflater are per thread since it takes only arrays.
+ */
+public class BinaryReplyBuilder extends ReplyBuilder {
+
+    // Frame length is written in front of the body once body is complete
+    private static final int HEADER = 5;
+
+    // Record message length is not known before the message ends. It is written as padded
+    // varint of fixed size so that the message doesn't have to be moved.
+    private static final int MESSAGE_LENGTH_SIZE = 4;
+
+    private static final int COMPRESSION_THRESHOLD = Configuration.instance.getInt( "compression.threshold", 1024 );
+    private static final int COMPRESSION_LEVEL = Configuration.instance.getInt( "compression.level", Deflater.DEFAULT_COMPRESSION );
+
+    private static final ThreadMXBean THREAD_MX_BEAN = ManagementFactory.getThreadMXBean();
+    private static final ThreadLocal<byte[][]> SCRATCH = ThreadLocal.withInitial( () -> new byte[ 2 ][ 0 ] );
+
+    private ByteBuffer mBuffer;
+    private int mMessageStart;
+    private Deflater mDeflater;
+
+    ReplyBuilder reset() {
+        if( mBuffer == null )
+            mBuffer = BufferPool.instance.acquire( 512 );
+
+        mReplyCode = null;
+        mBuffer.clear();
+        mBuffer.put( HEADER, BinaryProtocol.REPLY );
+        // Reply code is filled in by toBuffer
+        mBuffer.position( HEADER + 2 );
+        return this;
+    }
+
+    /*
+     * Gives outbound buffer back to pool once the reply in it has been written.
+     */
+    void releaseBuffer() {
+        if( mBuffer != null && !mBuffer.hasRemaining() ) {
+            BufferPool.instance.release( mBuffer );
+            mBuffer = null;
+        }
+    }
+
+    void enableCompression() {
+        if( mDeflater == null )
+            mDeflater = new Deflater( COMPRESSION_LEVEL );
+    }
+
+    /*
+     * Ends Deflater and gives buffer back to pool when the session closes.
+     */
+    void close() {
+        if( mDeflater != null ) {
+            mDeflater.end();
+            mDeflater = null;
+        }
+
+        if( mBuffer != null ) {
+            BufferPool.instance.release( mBuffer );
+            mBuffer = null;
+        }
+    }
+
+    @Override
+    public void addMessage( byte[] message ) {
+        ensure( 5 + message.length );
+        BinaryProtocol.putVarLong( mBuffer, message.length );
+        mBuffer.put( message );
+    }
+
+    @Override
+    public void beginMessage() {
+        ensure( MESSAGE_LENGTH_SIZE );
+        mMessageStart = mBuffer.position();
+        mBuffer.position( mMessageStart + MESSAGE_LENGTH_SIZE );
+    }
+
+    @Override
+    public ReplyBuilder addId( long value ) {
+        ensure( 10 );
+        BinaryProtocol.putVarLong( mBuffer, value );
+        return this;
+    }
+
+    @Override
+    public ReplyBuilder addCoordinate( double value ) {
+        ensure( 8 );
+        mBuffer.putDouble( value );
+        return this;
+    }
+
+    @Override
+    public ReplyBuilder addTime( long value ) {
+        ensure( 8 );
+        mBuffer.putLong( value );
+        return this;
+    }
+
+    /*
+     * String is encoded to UTF-8 straight into the buffer. Length is counted first so
+     * that it can be written in front of the bytes.
+     */
+    @Override
+    public ReplyBuilder addString( String value ) {
+        int length = 0;
+
+        for( int i = 0; i < value.length(); i++ ) {
+            char c = value.charAt( i );
+
+            if( c < 0x80 ) {
+                length += 1;
+            } else if( c < 0x800 ) {
+                length += 2;
+            } else if( Character.isHighSurrogate( c ) && i + 1 < value.length() && Character.isLowSurrogate( value.charAt( i + 1 ) ) ) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+
+        ensure( 5 + length );
+        BinaryProtocol.putVarLong( mBuffer, length );
+
+        for( int i = 0; i < value.length(); i++ ) {
+            char c = value.charAt( i );
+
+            if( c < 0x80 ) {
+                mBuffer.put( (byte)c );
+            } else if( c < 0x800 ) {
+                mBuffer.put( (byte)( 0xC0 | ( c >> 6 ) ) );
+                mBuffer.put( (byte)( 0x80 | ( c & 0x3F ) ) );
+            } else if( Character.isHighSurrogate( c ) && i + 1 < value.length() && Character.isLowSurrogate( value.charAt( i + 1 ) ) ) {
+                int codePoint = Character.toCodePoint( c, value.charAt( ++i ) );
+                mBuffer.put( (byte)( 0xF0 | ( codePoint >> 18 ) ) );
+                mBuffer.put( (byte)( 0x80 | ( ( codePoint >> 12 ) & 0x3F ) ) );
+                mBuffer.put( (byte)( 0x80 | ( ( codePoint >> 6 ) & 0x3F ) ) );
+                mBuffer.put( (byte)( 0x80 | ( codePoint & 0x3F ) ) );
+            } else {
+                // Lone surrogate can't be encoded. It is replaced with replacement character.
+                if( Character.isSurrogate( c ) )
+                    c = '\uFFFD';
+
+                mBuffer.put( (byte)( 0xE0 | ( c >> 12 ) ) );
+                mBuffer.put( (byte)( 0x80 | ( ( c >> 6 ) & 0x3F ) ) );
+                mBuffer.put( (byte)( 0x80 | ( c & 0x3F ) ) );
+            }
+        }
+
+        return this;
+    }
+
+    @Override
+    public void endRecord() {
+    }
+
+    @Override
+    public void endMessage() {
+        int length = mBuffer.position() - mMessageStart - MESSAGE_LENGTH_SIZE;
+
+        if( length >= 1 << ( 7 * MESSAGE_LENGTH_SIZE ) )
+            throw new IllegalStateException( "Reply message too long " + length );
+
+        // Padded varint, continuation bit set on all but the last byte
+        for( int i = 0; i < MESSAGE_LENGTH_SIZE; i++ ) {
+            byte b = (byte)( ( length >>> ( 7 * i ) ) & 0x7F );
+            mBuffer.put( mMessageStart + i, i < MESSAGE_LENGTH_SIZE - 1 ? (byte)( b | 0x80 ) : b );
+        }
+    }
+
+    @Override
+    public void clear() {
+        mBuffer.position( HEADER + 2 );
+    }
+
+    @Override
+    ByteBuffer toBuffer() {
+        mBuffer.put( HEADER + 1, BinaryProtocol.getReplyCode( mReplyCode ) );
+
+        int end = mBuffer.position();
+
+        if( mDeflater != null && end - HEADER > COMPRESSION_THRESHOLD )
+            end = deflate( end );
+
+        int length = end - HEADER;
+        int start = HEADER - BinaryProtocol.varLongSize( length );
+
+        mBuffer.position( start );
+        BinaryProtocol.putVarLong( mBuffer, length );
+
+        mBuffer.limit( end );
+        mBuffer.position( start );
+
+        return mBuffer;
+    }
+
+    /*
+     * Replaces frame body with its deflated form. Returns the new end of body or the old one
+     * when deflating didn't make the body smaller.
+     */
+    private int deflate( int end ) {
+        boolean cpuTimeSupported = THREAD_MX_BEAN.isCurrentThreadCpuTimeSupported();
+        long cpuTime = cpuTimeSupported ? THREAD_MX_BEAN.getCurrentThreadCpuTime() : 0;
+
+        byte[][] scratch = SCRATCH.get();
+        int length = end - HEADER;
+
+        if( scratch[ 1 ].length < length )
+            scratch[ 1 ] = new byte[ length ];
+
+        if( mBuffer.hasArray() ) {
+            mDeflater.setInput( mBuffer.array(), mBuffer.arrayOffset() + HEADER, length );
+        } else {
+            if( scratch[ 0 ].length < length )
+                scratch[ 0 ] = new byte[ length ];
+
+            ByteBuffer body = mBuffer.duplicate();
+            body.position( HEADER );
+            body.get( scratch[ 0 ], 0, length );
+            mDeflater.setInput( scratch[ 0 ], 0, length );
+        }
+
+        mDeflater.finish();
+
+        // Output bigger than input is not worth sending
+        byte[] output = scratch[ 1 ];
+        int compressed = 0;
+
+        while( !mDeflater.finished() && compressed < output.length )
+            compressed += mDeflater.deflate( output, compressed, output.length - compressed );
+
+        boolean smaller = mDeflater.finished() && 1 + BinaryProtocol.varLongSize( length ) + compressed < length;
+        mDeflater.reset();
+
+        if( cpuTimeSupported )
+            Metrics.record( "compression.cpu.nanos", THREAD_MX_BEAN.getCurrentThreadCpuTime() - cpuTime );
+
+        if( !smaller ) {
+            Metrics.increment( "compression.skipped" );
+            return end;
+        }
+
+        mBuffer.position( HEADER );
+        mBuffer.put( BinaryProtocol.REPLY_DEFLATE );
+        BinaryProtocol.putVarLong( mBuffer, length );
+        mBuffer.put( output, 0, compressed );
+
+        Metrics.add( "compression.bytes.in", length );
+        Metrics.add( "compression.bytes.out", mBuffer.position() - HEADER );
+        Metrics.record( "compression.ratio.percent", 100L * ( mBuffer.position() - HEADER ) / length );
+
+        return mBuffer.position();
+    }
+
+    private void ensure( int bytes ) {
+        if( mBuffer.remaining() < bytes ) {
+            ByteBuffer temp = BufferPool.instance.acquire( Math.max( mBuffer.capacity() * 2, mBuffer.position() + bytes ) );
+            mBuffer.flip();
+            temp.put( mBuffer );
+            BufferPool.instance.release( mBuffer );
+            mBuffer = temp;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package fi.joni.lehtinen;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/*
+ * Serves one client connection with blocking reads and writes. Used in thread per session
+ * mode where every connection gets its own (virtual) thread so that blocking JDBC calls
+ * only stall the session that made them.
+ */
+public class BlockingSessionHandler implements Runnable {
+
+    private SecureChannel mSecureChannel;
+    private RequestProcessor mRequestProcessor = new RequestProcessor();
+
+    public BlockingSessionHandler( SecureChannel secureChannel ) {
+        mSecureChannel = secureChannel;
+    }
+
+    @Override
+    public void run() {
+        try {
+
+            // Blocking channel has no interestops. Handshake is driven until it completes.
+            while( !mSecureChannel.doHandshake( ops -> {} ) ) {
+                if( mSecureChannel.isInboundDone() )
+                    return;
+            }
+
+            for (;;) {
+                // Requests left over from previous pipelined batch are handled before reading more
+                if( !mRequestProcessor.hasCompleteRequest() ) {
+                    // Read and handle stream closed event
+                    if( mSecureChannel.read() == -1 )
+                        return;
+
+                    if( !mRequestProcessor.receive( mSecureChannel.getReadBuffer() ) )
+                        continue;
+                }
+
+                ByteBuffer replyBB = mRequestProcessor.process( false );
+
+                // Blocking socket writes everything it is given
+                while( replyBB.hasRemaining() ) {
+                    mSecureChannel.write( replyBB );
+                }
+
+                mSecureChannel.flush();
+            }
+
+        } catch( IOException | RuntimeException e ) {
+            // Broken framing can't be recovered from, session is closed
+            e.printStackTrace();
+        } finally {
+            close();
+        }
+    }
+
+    private void close() {
+        try {
+            mSecureChannel.shutdown();
+        } catch( IOException e ) {
+            e.printStackTrace();
+        }
+
+        try {
+            mSecureChannel.close();
+        } catch( IOException e ) {
+            e.printStackTrace();
+        }
+
+        mRequestProcessor.close();
+    }
+}
@@ -0,0 +1,141 @@
+package fi.joni.lehtinen;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Size classed pool of ByteBuffers. Sessions borrow buffers only while data is in them
+ * and give them back when idle, so idle connection doesn't pin its TLS buffers.
+ *
+ * Capacities are rounded up to next power of two. TLS buffers have a class of their own,
+ * SSLEngine asks for a bit over 16 KB and would otherwise take 32 KB. Buffers larger than
+ * the largest class are allocated and dropped without pooling.
+ */
+public class BufferPool {
+
+    public static final BufferPool instance = new BufferPool(
+        Configuration.instance.getBoolean( "bufferPool.direct", false ),
+        Configuration.instance.getLong( "bufferPool.maxPooledBytes", 64L * 1024 * 1024 ),
+        tlsBufferSize() );
+
+    private static final int MIN_SHIFT = 9;   // 512 B
+    private static final int MAX_SHIFT = 20;  // 1 MB
+
+    private final boolean mDirect;
+    private final long mMaxPooledBytes;
+    // Capacity of every size class in ascending order
+    private final int[] mCapacities;
+    private final ConcurrentLinkedQueue<ByteBuffer>[] mClasses;
+    private final AtomicLong mPooledBytes = new AtomicLong();
+    private final AtomicLong mBorrowedBytes = new AtomicLong();
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private BufferPool( boolean direct, long maxPooledBytes, int tlsBufferSize ) {
+        mDirect = direct;
+        mMaxPooledBytes = maxPooledBytes;
+
+        int[] capacities = new int[ MAX_SHIFT - MIN_SHIFT + 2 ];
+        int count = 0;
+
+        for( int shift = MIN_SHIFT; shift <= MAX_SHIFT; shift++ )
+            capacities[ count++ ] = 1 << shift;
+
+        if( tlsBufferSize > 1 << MIN_SHIFT && tlsBufferSize < 1 << MAX_SHIFT && Integer.bitCount( tlsBufferSize ) != 1 )
+            capacities[ count++ ] = tlsBufferSize;
+
+        mCapacities = Arrays.copyOf( capacities, count );
+        Arrays.sort( mCapacities );
+
+        mClasses = new ConcurrentLinkedQueue[ mCapacities.length ];
+
+        for( int i = 0; i < mClasses.length; i++ )
+            mClasses[ i ] = new ConcurrentLinkedQueue<>();
+
+        Metrics.gauge( "bufferPool.pooled.bytes", mPooledBytes::get );
+        Metrics.gauge( "bufferPool.borrowed.bytes", mBorrowedBytes::get );
+    }
+
+    /*
+     * Returns cleared buffer with at least given capacity.
+     */
+    public ByteBuffer acquire( int size ) {
+        int sizeClass = sizeClass( size );
+
+        if( sizeClass == -1 ) {
+            Metrics.increment( "bufferPool.miss" );
+            return allocate( size );
+        }
+
+        ByteBuffer buffer = mClasses[ sizeClass ].poll();
+        int capacity = mCapacities[ sizeClass ];
+
+        if( buffer == null ) {
+            Metrics.increment( "bufferPool.miss" );
+            buffer = allocate( capacity );
+        } else {
+            Metrics.increment( "bufferPool.hit" );
+            mPooledBytes.addAndGet( -capacity );
+        }
+
+        mBorrowedBytes.addAndGet( capacity );
+
+        return buffer;
+    }
+
+    public void release( ByteBuffer buffer ) {
+        if( buffer == null )
+            return;
+
+        int capacity = buffer.capacity();
+        int sizeClass = sizeClass( capacity );
+
+        // Only buffers that came from this pool go back to it
+        if( sizeClass == -1 || capacity != mCapacities[ sizeClass ] || buffer.isDirect() != mDirect )
+            return;
+
+        mBorrowedBytes.addAndGet( -capacity );
+
+        if( mPooledBytes.get() + capacity > mMaxPooledBytes )
+            return;
+
+        buffer.clear();
+        mPooledBytes.addAndGet( capacity );
+        mClasses[ sizeClass ].offer( buffer );
+    }
+
+    private ByteBuffer allocate( int capacity ) {
+        return mDirect ? ByteBuffer.allocateDirect( capacity ) : ByteBuffer.allocate( capacity );
+    }
+
+    // Smallest class that fits size or -1
+    private int sizeClass( int size ) {
+        int sizeClass = Arrays.binarySearch( mCapacities, size );
+
+        if( sizeClass < 0 )
+            sizeClass = -sizeClass - 1;
+
+        return sizeClass < mCapacities.length ? sizeClass : -1;
+    }
+
+    /*
+     * Larger of the packet and application buffer sizes SSLEngine asks for. Sizes don't
+     * depend on keys, so engine of a context without them tells the same.
+     */
+    private static int tlsBufferSize() {
+        try {
+            SSLContext context = SSLContext.getInstance( "TLS" );
+            context.init( null, null, null );
+            SSLSession session = context.createSSLEngine().getSession();
+
+            return Math.max( session.getPacketBufferSize(), session.getApplicationBufferSize() );
+        } catch( GeneralSecurityException e ) {
+            e.printStackTrace();
+            return 0;
+        }
+    }
+}
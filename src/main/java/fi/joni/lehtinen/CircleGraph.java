@@ -0,0 +1,201 @@
+package fi.joni.lehtinen;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/*
+ * Circle memberships in memory: members of circle and circles of user, both confirmed and
+ * pending. Entries are loaded by DAO when first needed and dropped when DAO changes them,
+ * so next read loads them again.
+ *
+ * Load may race with a change. Loader takes stamp before reading database and entry is
+ * kept only if nothing has been dropped meanwhile.
+ *
+ * At most maxEntries circles and users are kept. New entry evicts a random one when full,
+ * so the active circles stay cached even after the rest of the graph has passed through.
+ */
+public class CircleGraph {
+
+    public static final CircleGraph instance = new CircleGraph();
+
+    private static final int MAX_ENTRIES = Configuration.instance.getInt( "circleGraph.maxEntries", 200000 );
+
+    // Object header, two array references and two array headers
+    private static final int ENTRY_OVERHEAD = 16 + 8 + 2 * 16;
+
+    /*
+     * Members of circle or circles of user. Arrays are sorted and never modified.
+     */
+    static class Memberships {
+        final long[] mConfirmed;
+        final long[] mPending;
+
+        Memberships( long[] confirmed, long[] pending ) {
+            Arrays.sort( confirmed );
+            Arrays.sort( pending );
+            mConfirmed = confirmed;
+            mPending = pending;
+        }
+
+        boolean contains( long id ) {
+            return isConfirmed( id ) || Arrays.binarySearch( mPending, id ) >= 0;
+        }
+
+        boolean isConfirmed( long id ) {
+            return Arrays.binarySearch( mConfirmed, id ) >= 0;
+        }
+
+        int size() {
+            return mConfirmed.length + mPending.length;
+        }
+
+        long bytes() {
+            return ENTRY_OVERHEAD + 8L * size();
+        }
+    }
+
+    private final LongMap<Memberships> mCircles = new LongMap<>( 1024 );
+    private final LongMap<Memberships> mUsers = new LongMap<>( 1024 );
+    private final ReentrantReadWriteLock mLock = new ReentrantReadWriteLock();
+
+    private final AtomicLong mStamp = new AtomicLong();
+    private final AtomicLong mBytes = new AtomicLong();
+    private final LongAdder mHits = new LongAdder();
+    private final LongAdder mMisses = new LongAdder();
+
+    private CircleGraph() {
+        Metrics.gauge( "circleGraph.entries", this::size );
+        Metrics.gauge( "circleGraph.bytes", this::bytes );
+        Metrics.gauge( "circleGraph.hitRate.percent", () -> {
+            long hits = mHits.sum();
+            long total = hits + mMisses.sum();
+            return total == 0 ? 0 : hits * 100 / total;
+        });
+    }
+
+    /*
+     * Returns members of circle or null when they have to be loaded.
+     */
+    Memberships getCircle( long circleID ) {
+        return get( mCircles, circleID );
+    }
+
+    /*
+     * Returns circles of user or null when they have to be loaded.
+     */
+    Memberships getUser( long userID ) {
+        return get( mUsers, userID );
+    }
+
+    /*
+     * Taken before loading entry from database.
+     */
+    long stamp() {
+        return mStamp.get();
+    }
+
+    void putCircle( long circleID, Memberships members, long stamp ) {
+        put( mCircles, circleID, members, stamp );
+    }
+
+    void putUser( long userID, Memberships circles, long stamp ) {
+        put( mUsers, userID, circles, stamp );
+    }
+
+    /*
+     * Called after members of circle have changed in database.
+     */
+    void circleChanged( long circleID ) {
+        drop( mCircles, circleID );
+    }
+
+    /*
+     * Called after circles of user have changed in database.
+     */
+    void userChanged( long userID ) {
+        drop( mUsers, userID );
+    }
+
+    private Memberships get( LongMap<Memberships> map, long id ) {
+        Memberships memberships;
+
+        mLock.readLock().lock();
+        try {
+            memberships = map.get( id );
+        } finally {
+            mLock.readLock().unlock();
+        }
+
+        if( memberships != null )
+            mHits.increment();
+        else
+            mMisses.increment();
+
+        return memberships;
+    }
+
+    private void put( LongMap<Memberships> map, long id, Memberships memberships, long stamp ) {
+        mLock.writeLock().lock();
+        try {
+            if( stamp != mStamp.get() || MAX_ENTRIES <= 0 )
+                return;
+
+            Memberships previous = map.get( id );
+
+            if( previous == null && mCircles.size() + mUsers.size() >= MAX_ENTRIES )
+                evict();
+
+            map.put( id, memberships );
+            mBytes.addAndGet( memberships.bytes() - ( previous == null ? 0 : previous.bytes() ) );
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    // Random entry of either map, map chosen by its share of entries
+    private void evict() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        LongMap<Memberships> map = random.nextInt( mCircles.size() + mUsers.size() ) < mCircles.size() ? mCircles : mUsers;
+        Memberships evicted = map.evict( random.nextInt() );
+
+        if( evicted != null ) {
+            mBytes.addAndGet( -evicted.bytes() );
+            Metrics.increment( "circleGraph.evictions" );
+        }
+    }
+
+    private void drop( LongMap<Memberships> map, long id ) {
+        mLock.writeLock().lock();
+        try {
+            mStamp.incrementAndGet();
+
+            Memberships previous = map.remove( id );
+
+            if( previous != null )
+                mBytes.addAndGet( -previous.bytes() );
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    private long size() {
+        mLock.readLock().lock();
+        try {
+            return mCircles.size() + mUsers.size();
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    private long bytes() {
+        mLock.readLock().lock();
+        try {
+            return mBytes.get() + mCircles.tableBytes() + mUsers.tableBytes();
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+}
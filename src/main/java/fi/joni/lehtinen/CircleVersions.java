@@ -0,0 +1,192 @@
+package fi.joni.lehtinen;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Versions of the data CIRCLE_DATA returns. DAO bumps version of a user, a circle or a
+ * location whenever it changes them, and the latest full CIRCLE_DATA of every user is
+ * remembered as View. Client that sends back the version of its last reply gets only
+ * what has changed since then.
+ *
+ * Versions live in memory. Clock starts from boot time so versions of earlier runs never
+ * match, and views are empty after restart so every client gets one full reply first.
+ *
+ * View unused for viewTtl milliseconds is dropped. Every pruneInterval versions older than
+ * the oldest view are dropped too, they can't be newer than any view. Pruning first raises
+ * horizon and only then removes versions. View below horizon is not trusted, and reader
+ * checks it once more after reading versions, so a removed version is never missed.
+ */
+public class CircleVersions {
+
+    public static final CircleVersions instance = new CircleVersions();
+
+    private static final long VIEW_TTL = Configuration.instance.getLong( "circleVersions.viewTtl", 600000 );
+    private static final long PRUNE_INTERVAL = Configuration.instance.getLong( "circleVersions.pruneInterval", 60000 );
+
+    // What follows the version in delta reply
+    static final int NOT_MODIFIED = 0;
+    static final int LOCATIONS = 1;
+    static final int FULL = 2;
+
+    /*
+     * Circles and friends of user at version. Friends are the users whose locations
+     * CIRCLE_DATA returns.
+     */
+    static class View {
+        final long mVersion;
+        final long[] mCircles;
+        final long[] mFriends;
+        // View is replaced on every reply, so this is when it was last used
+        final long mCreated = System.currentTimeMillis();
+
+        View( long version, long[] circles, long[] friends ) {
+            mVersion = version;
+            mCircles = circles;
+            mFriends = friends;
+        }
+    }
+
+    private final AtomicLong mClock = new AtomicLong( System.currentTimeMillis() * 1000 );
+
+    // Circle memberships and join requests of user
+    private final ConcurrentHashMap<Long,Long> mUsers = new ConcurrentHashMap<>();
+    // Name and members of circle
+    private final ConcurrentHashMap<Long,Long> mCircles = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long,Long> mLocations = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long,View> mViews = new ConcurrentHashMap<>();
+
+    // Versions up to horizon may have been removed
+    private volatile long mHorizon;
+
+    private CircleVersions() {
+        Metrics.gauge( "circleData.views", mViews::size );
+        Metrics.gauge( "circleData.versions", () -> mUsers.size() + mCircles.size() + mLocations.size() );
+
+        if( PRUNE_INTERVAL <= 0 )
+            return;
+
+        Executors.newSingleThreadScheduledExecutor( runnable -> {
+            Thread thread = new Thread( runnable, "CircleVersions" );
+            thread.setDaemon( true );
+            return thread;
+        }).scheduleWithFixedDelay( this::prune, PRUNE_INTERVAL, PRUNE_INTERVAL, TimeUnit.MILLISECONDS );
+    }
+
+    /*
+     * Returns version that covers every change made so far. Must be read before the data
+     * is read so that changes made meanwhile are sent again rather than missed.
+     */
+    long current() {
+        return mClock.get();
+    }
+
+    void userChanged( long userID ) {
+        mUsers.put( userID, mClock.incrementAndGet() );
+    }
+
+    void circleChanged( long circleID ) {
+        mCircles.put( circleID, mClock.incrementAndGet() );
+    }
+
+    void locationChanged( long userID ) {
+        mLocations.put( userID, mClock.incrementAndGet() );
+    }
+
+    /*
+     * Returns view of user if client's version is the one server last gave it.
+     */
+    View getView( long userID, long version ) {
+        View view = mViews.get( userID );
+        return view != null && view.mVersion == version && view.mVersion >= mHorizon ? view : null;
+    }
+
+    void putView( long userID, View view ) {
+        mViews.put( userID, view );
+    }
+
+    /*
+     * True when circles, memberships or join requests of the view have changed.
+     */
+    boolean structureChanged( long userID, View view ) {
+        if( isNewer( mUsers, userID, view.mVersion ) )
+            return true;
+
+        for( long circle : view.mCircles ) {
+            if( isNewer( mCircles, circle, view.mVersion ) )
+                return true;
+        }
+
+        return false;
+    }
+
+    /*
+     * Returns the friends whose location has changed after the view, or null when versions
+     * the view needs have been pruned meanwhile and full reply has to be sent. Called after
+     * structureChanged.
+     */
+    long[] changedLocations( View view ) {
+        long[] changed = new long[ view.mFriends.length ];
+        int count = 0;
+
+        for( long friend : view.mFriends ) {
+            if( isNewer( mLocations, friend, view.mVersion ) )
+                changed[ count++ ] = friend;
+        }
+
+        if( view.mVersion < mHorizon )
+            return null;
+
+        return count == changed.length ? changed : Arrays.copyOf( changed, count );
+    }
+
+    /*
+     * Drops expired views and versions older than the oldest remaining view.
+     */
+    void prune() {
+        long started = System.nanoTime();
+        long expired = System.currentTimeMillis() - VIEW_TTL;
+        long horizon = current();
+
+        for( Map.Entry<Long,View> entry : mViews.entrySet() ) {
+            View view = entry.getValue();
+
+            // View put with version already below horizon is never used either
+            if( view.mCreated < expired || view.mVersion < mHorizon )
+                mViews.remove( entry.getKey(), view );
+            else
+                horizon = Math.min( horizon, view.mVersion );
+        }
+
+        if( horizon <= mHorizon )
+            return;
+
+        mHorizon = horizon;
+
+        int pruned = prune( mUsers, horizon ) + prune( mCircles, horizon ) + prune( mLocations, horizon );
+
+        Metrics.record( "circleData.prune.versions", pruned );
+        Metrics.record( "circleData.prune.nanos", System.nanoTime() - started );
+    }
+
+    // Removes versions up to horizon unless they change meanwhile
+    private static int prune( ConcurrentHashMap<Long,Long> versions, long horizon ) {
+        int pruned = 0;
+
+        for( Map.Entry<Long,Long> entry : versions.entrySet() ) {
+            if( entry.getValue() <= horizon && versions.remove( entry.getKey(), entry.getValue() ) )
+                pruned++;
+        }
+
+        return pruned;
+    }
+
+    private static boolean isNewer( ConcurrentHashMap<Long,Long> versions, long key, long version ) {
+        Long changed = versions.get( key );
+        return changed != null && changed > version;
+    }
+}
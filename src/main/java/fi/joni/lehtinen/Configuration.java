@@ -0,0 +1,43 @@
+package fi.joni.lehtinen;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+public class Configuration {
+
+    public static final Configuration instance = new Configuration();
+
+    private final Properties mProperties = new Properties();
+
+    private Configuration(){
+        String propFileName = "build/resources/main/server.properties";
+        try(InputStream inputStream = new FileInputStream(propFileName)) {
+            mProperties.load(inputStream);
+        } catch (IOException e) {
+            // Missing configuration is not fatal. Every lookup has a default value.
+            e.printStackTrace();
+        }
+    }
+
+    public String getString( String key, String defaultValue ){
+        String value = mProperties.getProperty( key );
+        return value == null ? defaultValue : value.trim();
+    }
+
+    public int getInt( String key, int defaultValue ){
+        String value = mProperties.getProperty( key );
+        return value == null ? defaultValue : Integer.parseInt( value.trim() );
+    }
+
+    public long getLong( String key, long defaultValue ){
+        String value = mProperties.getProperty( key );
+        return value == null ? defaultValue : Long.parseLong( value.trim() );
+    }
+
+    public boolean getBoolean( String key, boolean defaultValue ){
+        String value = mProperties.getProperty( key );
+        return value == null ? defaultValue : Boolean.parseBoolean( value.trim() );
+    }
+}
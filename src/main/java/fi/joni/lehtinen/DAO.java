@@ -1,17 +1,27 @@
 package fi.joni.lehtinen;
 
 import fi.joni.lehtinen.friendfinder.connectionprotocol.ConnectionProtocol;
-import fi.joni.lehtinen.friendfinder.connectionprotocol.Reply;
 import fi.joni.lehtinen.friendfinder.connectionprotocol.dto.*;
 
 import java.nio.charset.StandardCharsets;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
 
 public class DAO {
 
     private static final int ITERATIONS = 10000;
 
+    // Sections of CIRCLE_DATA statement, in reply order
+    private static final int CIRCLES = 0;
+    private static final int MEMBERSHIPS = 1;
+    private static final int FRIENDS = 2;
+    private static final int JOIN_REQUESTS = 3;
+    private static final int LOCATIONS = 4;
+
     private Connection mConnection;
 
     public DAO(){
@@ -26,12 +36,39 @@ public class DAO {
         mConnection.close();
     }
 
+    /*
+     * Statement comes from the pool of the connection when it has been prepared there before.
+     */
+    private PreparedStatement prepare( Query query ) throws SQLException {
+        return query.mGeneratedKeys ? mConnection.prepareStatement( query.mSql, Statement.RETURN_GENERATED_KEYS ) : mConnection.prepareStatement( query.mSql );
+    }
+
+    private static ResultSet executeQuery( Query query, PreparedStatement preparedStatement ) throws SQLException {
+        long started = System.nanoTime();
+
+        try {
+            return preparedStatement.executeQuery();
+        } finally {
+            Metrics.record( query.mMetric, System.nanoTime() - started );
+        }
+    }
+
+    private static int executeUpdate( Query query, PreparedStatement preparedStatement ) throws SQLException {
+        long started = System.nanoTime();
+
+        try {
+            return preparedStatement.executeUpdate();
+        } finally {
+            Metrics.record( query.mMetric, System.nanoTime() - started );
+        }
+    }
+
     public boolean emailTaken(Login login){
-        String sql = "SELECT email FROM \"FriendFinder\".user WHERE email=?";
-        try(PreparedStatement preparedStatement = mConnection.prepareStatement( sql )){
+        Query query = Query.EMAIL_TAKEN;
+        try(PreparedStatement preparedStatement = prepare( query )){
             preparedStatement.setString( 1, login.mEmail );
 
-            ResultSet resultSet = preparedStatement.executeQuery();
+            ResultSet resultSet = executeQuery( query, preparedStatement );
 
             return resultSet.next();
         } catch(SQLException e){
@@ -43,11 +80,11 @@ public class DAO {
 
     public User getUser(Login login){
         User user = null;
-        String sql = "SELECT * FROM \"FriendFinder\".user WHERE email=?";
-        try(PreparedStatement preparedStatement = mConnection.prepareStatement( sql )){
+        Query query = Query.GET_USER;
+        try(PreparedStatement preparedStatement = prepare( query )){
             preparedStatement.setString( 1, login.mEmail );
 
-            ResultSet resultSet = preparedStatement.executeQuery();
+            ResultSet resultSet = executeQuery( query, preparedStatement );
 
             if(resultSet.next()){
                 user = new User(
@@ -68,8 +105,8 @@ public class DAO {
     }
 
     public int register( Register register ){
-        String sql = "INSERT INTO \"FriendFinder\".user (email,firstname,lastname,iterations,salt,password) VALUES (?,?,?,?,?,?)";
-        try(PreparedStatement preparedStatement = mConnection.prepareStatement( sql )){
+        Query query = Query.REGISTER;
+        try(PreparedStatement preparedStatement = prepare( query )){
 
             byte[] salt = Authentication.generateSalt();
             byte[] hash = Authentication.hash( register.mPassword, ITERATIONS, salt );
@@ -81,7 +118,7 @@ public class DAO {
             preparedStatement.setBytes( 5, salt );
             preparedStatement.setBytes( 6, hash );
 
-            return preparedStatement.executeUpdate() == 1 ? 0 : -1;
+            return executeUpdate( query, preparedStatement ) == 1 ? 0 : -1;
 
         } catch(SQLException e){
             return Integer.parseInt( e.getSQLState() );
@@ -89,65 +126,262 @@ public class DAO {
     }
 
     public int addLocation( Location location ){
-        String sql = "SELECT id FROM \"FriendFinder\".location WHERE user_id = ?";
-        try(PreparedStatement preparedStatement = mConnection.prepareStatement( sql )){
+        return addLocation( location.mUserID, location.mLatitude, location.mLongitude, location.mAccuracy, location.mTimeRecorded );
+    }
 
-            preparedStatement.setLong( 1, location.mUserID );
+    public int addLocation( long user_id, double latitude, double longitude, double accuracy, long time_recorded ){
+        return addLocation( user_id, latitude, longitude, accuracy, time_recorded, false );
+    }
 
-            ResultSet resultSet = preparedStatement.executeQuery();
+    /*
+     * Stores current location of user with one statement. Update and insert are in the same
+     * statement, so row is inserted only when user has none. With onlyNewer stored location
+     * is kept if it was recorded later, which happens when phone uploads old fixes after
+     * it has already sent live ones.
+     */
+    public int addLocation( long user_id, double latitude, double longitude, double accuracy, long time_recorded, boolean onlyNewer ){
+        Query query = onlyNewer ? Query.ADD_LOCATION_IF_NEWER : Query.ADD_LOCATION;
 
-            if ( resultSet.next() ){
-                sql = "UPDATE \"FriendFinder\".location set user_id = ?, latitude = ?, longitude = ?, accuracy = ?, time_recorded = ? WHERE id = " + resultSet.getInt( "id" );
-            } else {
-                sql = "INSERT INTO \"FriendFinder\".location (user_id,latitude,longitude,accuracy,time_recorded) VALUES (?,?,?,?,?)";
-            }
+        try(PreparedStatement preparedStatement = prepare( query )){
+            int index = 1;
+
+            preparedStatement.setDouble( index++, latitude );
+            preparedStatement.setDouble( index++, longitude );
+            preparedStatement.setDouble( index++, accuracy );
+            preparedStatement.setLong( index++, time_recorded );
+            preparedStatement.setLong( index++, user_id );
+
+            if( onlyNewer )
+                preparedStatement.setLong( index++, time_recorded );
+
+            preparedStatement.setLong( index++, user_id );
+            preparedStatement.setDouble( index++, latitude );
+            preparedStatement.setDouble( index++, longitude );
+            preparedStatement.setDouble( index++, accuracy );
+            preparedStatement.setLong( index++, time_recorded );
+            preparedStatement.setLong( index, user_id );
+
+            executeUpdate( query, preparedStatement );
+
+            CircleVersions.instance.locationChanged( user_id );
+
+            return 0;
+
+        } catch(SQLException e){
+            e.printStackTrace();
+            return Integer.parseInt( e.getSQLState() );
+        }
+    }
+
+    /*
+     * Time the stored location of user was recorded, Long.MIN_VALUE when user has none.
+     * Long.MAX_VALUE when it can't be read, so that no fix is taken as newer.
+     */
+    public long getLocationTime( long user_id ){
+        Query query = Query.LOCATION_TIME;
+
+        try(PreparedStatement preparedStatement = prepare( query )){
+            preparedStatement.setLong( 1, user_id );
+
+            ResultSet resultSet = executeQuery( query, preparedStatement );
+
+            return resultSet.next() ? resultSet.getLong( "time_recorded" ) : Long.MIN_VALUE;
+
+        } catch(SQLException e){
+            e.printStackTrace();
+            return Long.MAX_VALUE;
+        }
+    }
+
+    /*
+     * Stores locations of several users with one statement. Fixes are passed as arrays and
+     * unnested into rows, so statement is the same whatever the size of the batch. Versions
+     * are not bumped, LocationStore did that when it took the fixes.
+     */
+    public int addLocations( Map<Long,LocationStore.Fix> fixes ){
+        Query query = Query.ADD_LOCATIONS;
+
+        int size = fixes.size();
+        Long[] ids = new Long[ size ];
+        Double[] latitudes = new Double[ size ];
+        Double[] longitudes = new Double[ size ];
+        Double[] accuracies = new Double[ size ];
+        Long[] times = new Long[ size ];
+        Boolean[] onlyNewer = new Boolean[ size ];
+
+        int i = 0;
+        for( Map.Entry<Long,LocationStore.Fix> entry : fixes.entrySet() ){
+            LocationStore.Fix fix = entry.getValue();
+
+            ids[ i ] = entry.getKey();
+            latitudes[ i ] = fix.mLatitude;
+            longitudes[ i ] = fix.mLongitude;
+            accuracies[ i ] = fix.mAccuracy;
+            times[ i ] = fix.mTimeRecorded;
+            onlyNewer[ i ] = fix.mOnlyNewer;
+            i++;
+        }
+
+        try(PreparedStatement preparedStatement = prepare( query )){
+
+            preparedStatement.setArray( 1, mConnection.createArrayOf( "bigint", ids ) );
+            preparedStatement.setArray( 2, mConnection.createArrayOf( "float8", latitudes ) );
+            preparedStatement.setArray( 3, mConnection.createArrayOf( "float8", longitudes ) );
+            preparedStatement.setArray( 4, mConnection.createArrayOf( "float8", accuracies ) );
+            preparedStatement.setArray( 5, mConnection.createArrayOf( "bigint", times ) );
+            preparedStatement.setArray( 6, mConnection.createArrayOf( "bool", onlyNewer ) );
+
+            executeUpdate( query, preparedStatement );
+
+            return 0;
 
         } catch(SQLException e){
             e.printStackTrace();
             return Integer.parseInt( e.getSQLState() );
         }
+    }
+
+    /*
+     * Loads every stored location to LocationTable.
+     */
+    public int loadLocations(){
+        Query query = Query.ALL_LOCATIONS;
+        try(PreparedStatement preparedStatement = prepare( query )){
 
-        try(PreparedStatement preparedStatement = mConnection.prepareStatement( sql )){
+            // Stream rows instead of reading the whole table to memory
+            mConnection.setAutoCommit( false );
+            preparedStatement.setFetchSize( 10000 );
 
-            preparedStatement.setLong( 1, location.mUserID );
-            preparedStatement.setDouble( 2, location.mLatitude );
-            preparedStatement.setDouble( 3, location.mLongitude );
-            preparedStatement.setDouble( 4, location.mAccuracy );
-            preparedStatement.setLong( 5, location.mTimeRecorded );
+            ResultSet resultSet = executeQuery( query, preparedStatement );
+
+            while( resultSet.next() ){
+                LocationTable.instance.put( resultSet.getLong( "user_id" ), resultSet.getDouble( "latitude" ), resultSet.getDouble( "longitude" ),
+                        resultSet.getDouble( "accuracy" ), resultSet.getLong( "time_recorded" ), true );
+            }
 
-            preparedStatement.executeUpdate();
+            mConnection.commit();
 
             return 0;
 
         } catch(SQLException e){
             e.printStackTrace();
             return Integer.parseInt( e.getSQLState() );
+        } finally {
+            try {
+                mConnection.setAutoCommit( true );
+            } catch(SQLException e){
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /*
+     * Returns users that see location of user in their CIRCLE_DATA, that is the confirmed
+     * members of user's circles.
+     */
+    public long[] getLocationReceivers( long user_id ){
+        try {
+            CircleGraph.Memberships circles = userCircles( user_id );
+
+            long[] receivers = new long[ 16 ];
+            int count = 0;
+
+            for( long[] ids : new long[][]{ circles.mConfirmed, circles.mPending } ){
+                for( long circle : ids ){
+                    for( long member : circleMembers( circle ).mConfirmed ){
+                        if( member == user_id )
+                            continue;
+
+                        if( count == receivers.length )
+                            receivers = Arrays.copyOf( receivers, count * 2 );
+
+                        receivers[ count++ ] = member;
+                    }
+                }
+            }
+
+            return Arrays.copyOf( receivers, sortUnique( receivers, count ) );
+
+        } catch(SQLException e){
+            e.printStackTrace();
+            return new long[ 0 ];
+        }
+    }
+
+    /*
+     * Members of circle from CircleGraph, loaded from database when not there.
+     */
+    private CircleGraph.Memberships circleMembers( long group_id ) throws SQLException {
+        CircleGraph.Memberships members = CircleGraph.instance.getCircle( group_id );
+
+        if( members == null ){
+            long stamp = CircleGraph.instance.stamp();
+            members = loadMemberships( Query.CIRCLE_MEMBERS, group_id );
+            CircleGraph.instance.putCircle( group_id, members, stamp );
+        }
+
+        return members;
+    }
+
+    /*
+     * Circles of user from CircleGraph, loaded from database when not there.
+     */
+    private CircleGraph.Memberships userCircles( long user_id ) throws SQLException {
+        CircleGraph.Memberships circles = CircleGraph.instance.getUser( user_id );
+
+        if( circles == null ){
+            long stamp = CircleGraph.instance.stamp();
+            circles = loadMemberships( Query.USER_CIRCLES, user_id );
+            CircleGraph.instance.putUser( user_id, circles, stamp );
+        }
+
+        return circles;
+    }
+
+    private CircleGraph.Memberships loadMemberships( Query query, long id ) throws SQLException {
+        ArrayList<Long> confirmed = new ArrayList<>();
+        ArrayList<Long> pending = new ArrayList<>();
+
+        try(PreparedStatement preparedStatement = prepare( query )){
+
+            preparedStatement.setLong( 1, id );
+
+            ResultSet resultSet = executeQuery( query, preparedStatement );
+
+            while( resultSet.next() ){
+                ( resultSet.getBoolean( "confirmed" ) ? confirmed : pending ).add( resultSet.getLong( "id" ) );
+            }
         }
+
+        return new CircleGraph.Memberships( toArray( confirmed ), toArray( pending ) );
     }
 
     public long createCircle( Circle circle, long user_id ) {
         long group_id = -1;
 
-        String sql = "INSERT INTO \"FriendFinder\".group (name) VALUES (?)";
-        try(PreparedStatement psCircle = mConnection.prepareStatement( sql, Statement.RETURN_GENERATED_KEYS )){
+        Query query = Query.CREATE_CIRCLE;
+        try(PreparedStatement psCircle = prepare( query )){
 
             psCircle.setString( 1, circle.mName );
 
-            psCircle.executeUpdate();
+            executeUpdate( query, psCircle );
 
             ResultSet resultSet = psCircle.getGeneratedKeys();
 
             if(resultSet.next()){
                 group_id = resultSet.getInt( 1 );
 
-                sql = "INSERT INTO \"FriendFinder\".groupmembers (group_id, user_id, confirmed) VALUES (?,?,true)";
+                query = Query.ADD_CIRCLE_OWNER;
 
-                try(PreparedStatement psCircleMember = mConnection.prepareStatement( sql )){
+                try(PreparedStatement psCircleMember = prepare( query )){
 
                     psCircleMember.setLong( 1, group_id );
                     psCircleMember.setLong( 2, user_id );
 
-                    psCircleMember.executeUpdate();
+                    executeUpdate( query, psCircleMember );
+
+                    circleChanged( group_id );
+                    userChanged( user_id );
 
                 } catch(SQLException e){
                     e.printStackTrace();
@@ -162,15 +396,15 @@ public class DAO {
     }
 
     public ArrayList<Circle> getJoinRequests( long user_id ){
-        String sql = "SELECT * FROM \"FriendFinder\".group WHERE \"FriendFinder\".group.id IN ( SELECT group_id FROM \"FriendFinder\".groupmembers WHERE user_id = ? AND confirmed = FALSE )";
+        Query query = Query.JOIN_REQUESTS;
 
         ArrayList<Circle> circles = new ArrayList<>();
 
-        try(PreparedStatement preparedStatement = mConnection.prepareStatement( sql )){
+        try(PreparedStatement preparedStatement = prepare( query )){
 
             preparedStatement.setLong( 1, user_id );
 
-            ResultSet resultSet = preparedStatement.executeQuery();
+            ResultSet resultSet = executeQuery( query, preparedStatement );
 
             while ( resultSet.next() ){
                 circles.add( new Circle( resultSet.getLong( "id" ), resultSet.getString( "name" ) ) );
@@ -184,27 +418,30 @@ public class DAO {
         return circles;
     }
 
-    public int confirmCircle( Circle circle, long user_id, Reply reply ){
-        String sql = "UPDATE \"FriendFinder\".groupmembers set confirmed = TRUE WHERE group_id = ? AND user_id = ?";
-        try(PreparedStatement preparedStatement = mConnection.prepareStatement( sql )){
+    public int confirmCircle( Circle circle, long user_id, ReplyBuilder reply ){
+        Query query = Query.CONFIRM_CIRCLE;
+        try(PreparedStatement preparedStatement = prepare( query )){
 
             preparedStatement.setLong( 1, circle.mID );
             preparedStatement.setLong( 2, user_id );
 
-            preparedStatement.executeUpdate();
+            executeUpdate( query, preparedStatement );
+
+            circleChanged( circle.mID );
+            userChanged( user_id );
 
         } catch(SQLException e){
             e.printStackTrace();
             return Integer.parseInt( e.getSQLState() );
         }
 
-        sql = "SELECT id, firstname, lastname FROM \"FriendFinder\".user WHERE \"FriendFinder\".user.id IN ( SELECT user_id FROM \"FriendFinder\".groupmembers WHERE group_id = ? AND confirmed = TRUE AND user_id <> ? )";
-        try(PreparedStatement preparedStatement = mConnection.prepareStatement( sql )){
+        query = Query.CIRCLE_MEMBER_NAMES;
+        try(PreparedStatement preparedStatement = prepare( query )){
 
             preparedStatement.setLong( 1, circle.mID );
             preparedStatement.setLong( 2, user_id );
 
-            ResultSet resultSet = preparedStatement.executeQuery();
+            ResultSet resultSet = executeQuery( query, preparedStatement );
 
             while( resultSet.next() ){
                 reply.addMessage( (resultSet.getLong( "id" ) + "," + resultSet.getString( "firstname" ) + "," + resultSet.getString( "lastname" )).getBytes( StandardCharsets.UTF_8 ));
@@ -220,13 +457,19 @@ public class DAO {
     }
 
     public int declineCircle(Circle circle, long user_id){
-        String sql = "DELETE FROM \"FriendFinder\".groupmembers WHERE group_id = ? AND user_id = ?";
-        try(PreparedStatement preparedStatement = mConnection.prepareStatement( sql )){
+        Query query = Query.DECLINE_CIRCLE;
+        try(PreparedStatement preparedStatement = prepare( query )){
 
             preparedStatement.setLong( 1, circle.mID );
             preparedStatement.setLong( 2, user_id );
 
-            return preparedStatement.executeUpdate() >= 0 ? 0 : -1;
+            if( executeUpdate( query, preparedStatement ) < 0 )
+                return -1;
+
+            circleChanged( circle.mID );
+            userChanged( user_id );
+
+            return 0;
 
         } catch(SQLException e){
             e.printStackTrace();
@@ -236,15 +479,22 @@ public class DAO {
 
     public int deleteCircle( Circle circle, long user_id ){
         // CircleMembers table is made with ON DELETE CASCADE no need to delete from it
-        String sql = "DELETE FROM \"FriendFinder\".group WHERE id = ? AND ( SELECT COUNT(*) FROM \"FriendFinder\".groupmembers WHERE group_id = ? AND user_id = ? ) = 1";
+        Query query = Query.DELETE_CIRCLE;
+
+        try(PreparedStatement preparedStatement = prepare( query )){
+
+            // Statement checks membership too, this only saves the round trip
+            CircleGraph.Memberships members = circleMembers( circle.mID );
 
-        try(PreparedStatement preparedStatement = mConnection.prepareStatement( sql )){
+            if( !members.contains( user_id ) )
+                return 0;
 
             preparedStatement.setLong( 1, circle.mID );
             preparedStatement.setLong( 2, circle.mID );
             preparedStatement.setLong( 3, user_id );
 
-            preparedStatement.executeUpdate();
+            if( executeUpdate( query, preparedStatement ) > 0 )
+                circleDeleted( circle.mID, members );
 
             return 0;
 
@@ -255,15 +505,8 @@ public class DAO {
     }
 
     public int addCircleMember( CircleMember circleMember, long user_id ){
-        String sql = "SELECT COUNT(*) FROM \"FriendFinder\".groupmembers WHERE group_id = ? AND user_id = ?";
-        try(PreparedStatement preparedStatement = mConnection.prepareStatement( sql )){
-
-            preparedStatement.setLong( 1, circleMember.mGroupID );
-            preparedStatement.setLong( 2, user_id );
-
-            ResultSet resultSet = preparedStatement.executeQuery();
-
-            if( resultSet.next() && resultSet.getInt( 1 ) != 1 ){
+        try {
+            if( !circleMembers( circleMember.mGroupID ).contains( user_id ) ){
                 return -1;
             }
 
@@ -274,12 +517,12 @@ public class DAO {
 
         long member_id = -1;
 
-        sql = "SELECT id FROM \"FriendFinder\".user WHERE email = ?";
-        try(PreparedStatement preparedStatement = mConnection.prepareStatement( sql )){
+        Query query = Query.USER_ID;
+        try(PreparedStatement preparedStatement = prepare( query )){
 
             preparedStatement.setString( 1, circleMember.mFriendEmail );
 
-            ResultSet resultSet = preparedStatement.executeQuery();
+            ResultSet resultSet = executeQuery( query, preparedStatement );
 
             if( resultSet.next() ){
                 member_id = resultSet.getLong( "id" );
@@ -293,13 +536,16 @@ public class DAO {
         }
 
 
-        sql = "INSERT INTO \"FriendFinder\".groupmembers (group_id, user_id) VALUES (?,?)";
-        try(PreparedStatement preparedStatement = mConnection.prepareStatement( sql )){
+        query = Query.ADD_CIRCLE_MEMBER;
+        try(PreparedStatement preparedStatement = prepare( query )){
 
             preparedStatement.setLong( 1, circleMember.mGroupID );
             preparedStatement.setLong( 2, member_id );
 
-            preparedStatement.executeUpdate();
+            executeUpdate( query, preparedStatement );
+
+            circleChanged( circleMember.mGroupID );
+            userChanged( member_id );
 
             return 0;
 
@@ -312,21 +558,18 @@ public class DAO {
     public int removeCircleMember( CircleMember circleMember, long user_id ){
 
         boolean deleteCircle = false;
+        CircleGraph.Memberships members;
+        Query query;
 
-        String sql = "SELECT COUNT(*) FROM \"FriendFinder\".groupmembers WHERE group_id = ? AND ( SELECT COUNT(*) FROM \"FriendFinder\".groupmembers WHERE group_id = ? AND user_id = ? ) = 1";
-        try(PreparedStatement preparedStatement = mConnection.prepareStatement( sql )){
-
-            preparedStatement.setLong( 1, circleMember.mGroupID );
-            preparedStatement.setLong( 2, circleMember.mGroupID );
-            preparedStatement.setLong( 3, user_id );
-
-            ResultSet resultSet = preparedStatement.executeQuery();
+        try {
+            members = circleMembers( circleMember.mGroupID );
 
-            if( resultSet.next() && resultSet.getInt( 1 ) == 1 ){
-                sql = "DELETE FROM \"FriendFinder\".group WHERE id = ?";
+            // Circle goes away with its last member
+            if( members.contains( user_id ) && members.size() == 1 ){
+                query = Query.REMOVE_CIRCLE;
                 deleteCircle = true;
             } else {
-                sql = "DELETE FROM \"FriendFinder\".groupmembers WHERE group_id = ? AND user_id = ? AND ( SELECT COUNT(*) FROM \"FriendFinder\".groupmembers WHERE group_id = ? AND user_id = ? ) = 1";
+                query = Query.REMOVE_CIRCLE_MEMBER;
             }
 
         } catch(SQLException e){
@@ -334,7 +577,7 @@ public class DAO {
             return Integer.parseInt( e.getSQLState() );
         }
 
-        try(PreparedStatement preparedStatement = mConnection.prepareStatement( sql )){
+        try(PreparedStatement preparedStatement = prepare( query )){
 
             if( deleteCircle ){
                 preparedStatement.setLong( 1, circleMember.mGroupID );
@@ -345,7 +588,14 @@ public class DAO {
                 preparedStatement.setLong( 4, user_id );
             }
 
-            preparedStatement.executeUpdate();
+            if( executeUpdate( query, preparedStatement ) > 0 ){
+                if( deleteCircle ){
+                    circleDeleted( circleMember.mGroupID, members );
+                } else {
+                    circleChanged( circleMember.mGroupID );
+                    userChanged( circleMember.mFriendID );
+                }
+            }
 
             return 0;
 
@@ -355,132 +605,323 @@ public class DAO {
         }
     }
 
-    public int getCircleData( long id, Reply reply ){
-        StringBuilder builder = new StringBuilder();
+    /*
+     * Called after changes to circle and memberships have been written.
+     */
+    private static void circleChanged( long group_id ){
+        CircleVersions.instance.circleChanged( group_id );
+        CircleGraph.instance.circleChanged( group_id );
+    }
 
-        String sql = "SELECT * FROM \"FriendFinder\".group WHERE \"FriendFinder\".group.id IN ( SELECT group_id FROM \"FriendFinder\".groupmembers WHERE user_id = ? AND confirmed = TRUE )";
-        try(PreparedStatement preparedStatement = mConnection.prepareStatement( sql )){
+    private static void userChanged( long user_id ){
+        CircleVersions.instance.userChanged( user_id );
+        CircleGraph.instance.userChanged( user_id );
+    }
 
-            preparedStatement.setLong( 1, id );
+    private static void circleDeleted( long group_id, CircleGraph.Memberships members ){
+        circleChanged( group_id );
+
+        for( long[] ids : new long[][]{ members.mConfirmed, members.mPending } ){
+            for( long member : ids )
+                userChanged( member );
+        }
+    }
+
+    public int getCircleData( long id, ReplyBuilder reply ){
+        return writeCircleData( id, reply, null, null );
+    }
 
-            ResultSet resultSet = preparedStatement.executeQuery();
+    /*
+     * CIRCLE_DATA for client that sent the version of its last reply. First message holds
+     * the new version and what follows it: nothing when not modified, only the locations
+     * that have changed or the full data.
+     */
+    public int getCircleData( long id, long version, ReplyBuilder reply ){
+        CircleVersions versions = CircleVersions.instance;
+        long current = versions.current();
+        CircleVersions.View view = versions.getView( id, version );
+        long[] changed = view == null || versions.structureChanged( id, view ) ? null : versions.changedLocations( view );
 
-            while( resultSet.next() ){
-                builder.append( resultSet.getLong( "id" ) )
-                        .append( "," )
-                        .append( resultSet.getString( "name" ) )
-                        .append( ";" );
+        if( changed == null ){
+            ArrayList<Long> circles = new ArrayList<>();
+            HashSet<Long> friends = new HashSet<>();
+
+            writeVersion( reply, current, CircleVersions.FULL );
+
+            int result = writeCircleData( id, reply, circles, friends );
+
+            if( result == 0 ){
+                versions.putView( id, new CircleVersions.View( current, toArray( circles ), toArray( friends ) ) );
+                Metrics.increment( "circleData.full" );
             }
 
-            // In case if empty message
-            builder.append( ";" );
+            return result;
+        }
+
+        if( changed.length == 0 ){
+            writeVersion( reply, current, CircleVersions.NOT_MODIFIED );
+            versions.putView( id, new CircleVersions.View( current, view.mCircles, view.mFriends ) );
+            Metrics.increment( "circleData.notModified" );
+            return 0;
+        }
+
+        if( LocationTable.instance.isReady() ){
+            writeVersion( reply, current, CircleVersions.LOCATIONS );
 
-            reply.addMessage( builder.toString().getBytes( StandardCharsets.UTF_8 ) );
-            builder = new StringBuilder();
+            reply.beginMessage();
 
-        } catch(SQLException e){
-            e.printStackTrace();
-            return Integer.parseInt( e.getSQLState() );
+            for( long friend : changed )
+                LocationTable.instance.write( friend, reply );
+
+            reply.endMessage();
+
+            versions.putView( id, new CircleVersions.View( current, view.mCircles, view.mFriends ) );
+            Metrics.increment( "circleData.delta" );
+
+            return 0;
         }
 
-        sql = "SELECT id, group_id, user_id FROM \"FriendFinder\".groupmembers WHERE \"FriendFinder\".groupmembers.group_id IN ( SELECT group_id FROM \"FriendFinder\".groupmembers WHERE user_id = ? AND confirmed = TRUE )";
-        try(PreparedStatement preparedStatement = mConnection.prepareStatement( sql )){
+        Query query = Query.CHANGED_LOCATIONS;
+        try(PreparedStatement preparedStatement = prepare( query )){
 
-            preparedStatement.setLong( 1, id );
+            Long[] ids = new Long[ changed.length ];
+            for( int i = 0; i < changed.length; i++ )
+                ids[ i ] = changed[ i ];
 
-            ResultSet resultSet = preparedStatement.executeQuery();
+            preparedStatement.setArray( 1, mConnection.createArrayOf( "bigint", ids ) );
 
-            while( resultSet.next() ){
-                builder.append( resultSet.getLong( "id" ) )
-                        .append( "," )
-                        .append( resultSet.getLong( "group_id" ) )
-                        .append( "," )
-                        .append( resultSet.getLong( "user_id" ) )
-                        .append( ";" );
-            }
+            writeVersion( reply, current, CircleVersions.LOCATIONS );
+
+            Arrays.sort( changed );
+            writeLocations( executeQuery( query, preparedStatement ), changed, reply );
 
-            // In case if empty message
-            builder.append( ";" );
+            versions.putView( id, new CircleVersions.View( current, view.mCircles, view.mFriends ) );
+            Metrics.increment( "circleData.delta" );
 
-            reply.addMessage( builder.toString().getBytes( StandardCharsets.UTF_8 ) );
-            builder = new StringBuilder();
+            return 0;
 
         } catch(SQLException e){
             e.printStackTrace();
             return Integer.parseInt( e.getSQLState() );
         }
+    }
 
+    private static void writeVersion( ReplyBuilder reply, long version, int content ){
+        reply.beginMessage();
+        reply.addTime( version )
+                .addId( content )
+                .endRecord();
+        reply.endMessage();
+    }
 
-        sql = "SELECT id, firstname, lastname FROM \"FriendFinder\".user WHERE \"FriendFinder\".user.id <> ? AND \"FriendFinder\".user.id IN ( SELECT \"FriendFinder\".groupmembers.user_id FROM \"FriendFinder\".groupmembers WHERE group_id IN ( SELECT group_id FROM \"FriendFinder\".groupmembers WHERE user_id = ? AND confirmed = TRUE ) )";
-        try(PreparedStatement preparedStatement = mConnection.prepareStatement( sql )){
+    /*
+     * Writes location rows of the given users, ids sorted. Users without row may have their
+     * first location still in LocationStore.
+     */
+    private static void writeLocations( ResultSet resultSet, long[] ids, ReplyBuilder reply ) throws SQLException {
+        boolean[] written = new boolean[ ids.length ];
 
-            preparedStatement.setLong( 1, id );
-            preparedStatement.setLong( 2, id );
+        reply.beginMessage();
 
-            ResultSet resultSet = preparedStatement.executeQuery();
+        while( resultSet.next() ){
+            int index = Arrays.binarySearch( ids, writeLocation( resultSet, reply ) );
 
-            while( resultSet.next() ){
-                builder.append( resultSet.getLong( "id" ) )
-                        .append( "," )
-                        .append( resultSet.getString( "firstname" ) )
-                        .append( "," )
-                        .append( resultSet.getString( "lastname" ) )
-                        .append( ";" );
-            }
+            if( index >= 0 )
+                written[ index ] = true;
+        }
+
+        writePendingLocations( ids, ids.length, written, reply );
 
-            // In case if empty message
-            builder.append( ";" );
+        reply.endMessage();
+    }
 
-            reply.addMessage( builder.toString().getBytes( StandardCharsets.UTF_8 ) );
-            builder = new StringBuilder();
+    /*
+     * Writes location row and returns its user. Fix that LocationStore has not yet written
+     * replaces the row so readers don't have to wait for the flush.
+     */
+    private static long writeLocation( ResultSet resultSet, ReplyBuilder reply ) throws SQLException {
+        long user_id = resultSet.getLong( "user_id" );
+        long time_recorded = resultSet.getLong( "time_recorded" );
+        LocationStore.Fix fix = LocationStore.instance.getPending( user_id );
+
+        if( fix != null && ( !fix.mOnlyNewer || fix.mTimeRecorded >= time_recorded ) ){
+            writeFix( user_id, fix, reply );
+            return user_id;
+        }
 
-            for( Circle circle : getJoinRequests(id) ){
-                builder.append( circle.mID )
-                        .append( "," )
-                        .append( circle.mName )
-                        .append( ";" );
-            }
+        reply.addId( user_id )
+                .addCoordinate( resultSet.getDouble( "latitude" ) )
+                .addCoordinate( resultSet.getDouble( "longitude" ) )
+                .addCoordinate( resultSet.getDouble( "accuracy" ) )
+                .addTime( time_recorded )
+                .endRecord();
 
-            // In case if empty message
-            builder.append( ";" );
+        return user_id;
+    }
 
-            reply.addMessage( builder.toString().getBytes( StandardCharsets.UTF_8 ) );
-            builder = new StringBuilder();
+    /*
+     * Writes pending fixes of the first count users that got no location row.
+     */
+    private static void writePendingLocations( long[] ids, int count, boolean[] written, ReplyBuilder reply ){
+        for( int i = 0; i < count; i++ ){
+            if( written[ i ] )
+                continue;
 
+            LocationStore.Fix fix = LocationStore.instance.getPending( ids[ i ] );
 
-        } catch(SQLException e){
-            e.printStackTrace();
-            return Integer.parseInt( e.getSQLState() );
+            if( fix != null )
+                writeFix( ids[ i ], fix, reply );
         }
+    }
 
-        sql = "SELECT * FROM \"FriendFinder\".location WHERE \"FriendFinder\".location.user_id <> ? AND \"FriendFinder\".location.user_id IN ( SELECT \"FriendFinder\".groupmembers.user_id FROM \"FriendFinder\".groupmembers WHERE group_id IN ( SELECT group_id FROM \"FriendFinder\".groupmembers WHERE user_id = ? AND confirmed = TRUE ) )";
-        try(PreparedStatement preparedStatement = mConnection.prepareStatement( sql )){
+    private static void writeFix( long user_id, LocationStore.Fix fix, ReplyBuilder reply ){
+        reply.addId( user_id )
+                .addCoordinate( fix.mLatitude )
+                .addCoordinate( fix.mLongitude )
+                .addCoordinate( fix.mAccuracy )
+                .addTime( fix.mTimeRecorded )
+                .endRecord();
+    }
+
+    /*
+     * Sorts first count values and moves duplicates out of them. Returns the number of
+     * unique values. Same friend may be in several circles.
+     */
+    private static int sortUnique( long[] values, int count ){
+        Arrays.sort( values, 0, count );
+
+        int unique = 0;
+        for( int i = 0; i < count; i++ ){
+            if( unique == 0 || values[ unique - 1 ] != values[ i ] )
+                values[ unique++ ] = values[ i ];
+        }
+
+        return unique;
+    }
+
+    private static long[] toArray( Collection<Long> values ){
+        long[] array = new long[ values.size() ];
+        int i = 0;
+
+        for( long value : values )
+            array[ i++ ] = value;
+
+        return array;
+    }
+
+    /*
+     * Writes circles, memberships, friend names, join requests and friend locations. Ids of
+     * the circles and friends are collected when collections are given.
+     *
+     * Everything comes from one statement that reads memberships of the user once. Rows are
+     * tagged with the section, that is the message, they belong to and come in message order.
+     * When LocationTable is ready locations are written from it and statement skips them.
+     */
+    private int writeCircleData( long id, ReplyBuilder reply, Collection<Long> circles, Collection<Long> friends ){
+        boolean fromTable = LocationTable.instance.isReady();
+        long[] friendIDs = new long[ 16 ];
+        int friendCount = 0;
+
+        // Set when location rows start. Friends are known by then, memberships come first.
+        boolean[] written = null;
+        int unique = 0;
+
+        Query query = Query.CIRCLE_DATA;
+        try(PreparedStatement preparedStatement = prepare( query )){
 
             preparedStatement.setLong( 1, id );
             preparedStatement.setLong( 2, id );
+            preparedStatement.setBoolean( 3, !fromTable );
+
+            ResultSet resultSet = executeQuery( query, preparedStatement );
 
-            ResultSet resultSet = preparedStatement.executeQuery();
+            int section = -1;
 
             while( resultSet.next() ){
-                builder.append( resultSet.getLong( "user_id" ) )
-                        .append( "," )
-                        .append( resultSet.getDouble( "latitude" ) )
-                        .append( "," )
-                        .append( resultSet.getDouble( "longitude" ) )
-                        .append( "," )
-                        .append( resultSet.getDouble( "accuracy" ) )
-                        .append( "," )
-                        .append( resultSet.getLong( "time_recorded" ) )
-                        .append( ";" );
+                int row = resultSet.getInt( "section" );
+
+                // Sections without rows are still sent as empty messages
+                for( ; section < row; section++ ){
+                    if( section >= 0 )
+                        reply.endMessage();
+
+                    reply.beginMessage();
+                }
+
+                switch( row ){
+                    case CIRCLES:
+                        reply.addId( resultSet.getLong( "id" ) )
+                                .addString( resultSet.getString( "name" ) )
+                                .endRecord();
+
+                        if( circles != null )
+                            circles.add( resultSet.getLong( "id" ) );
+                        break;
+                    case MEMBERSHIPS:
+                        reply.addId( resultSet.getLong( "id" ) )
+                                .addId( resultSet.getLong( "group_id" ) )
+                                .addId( resultSet.getLong( "user_id" ) )
+                                .endRecord();
+
+                        long member = resultSet.getLong( "user_id" );
+
+                        if( member != id && friends != null )
+                            friends.add( member );
+
+                        if( member != id ){
+                            if( friendCount == friendIDs.length )
+                                friendIDs = Arrays.copyOf( friendIDs, friendCount * 2 );
+
+                            friendIDs[ friendCount++ ] = member;
+                        }
+                        break;
+                    case FRIENDS:
+                        reply.addId( resultSet.getLong( "id" ) )
+                                .addString( resultSet.getString( "name" ) )
+                                .addString( resultSet.getString( "lastname" ) )
+                                .endRecord();
+                        break;
+                    case JOIN_REQUESTS:
+                        reply.addId( resultSet.getLong( "id" ) )
+                                .addString( resultSet.getString( "name" ) )
+                                .endRecord();
+                        break;
+                    case LOCATIONS:
+                        if( written == null ){
+                            unique = sortUnique( friendIDs, friendCount );
+                            written = new boolean[ unique ];
+                        }
+
+                        int index = Arrays.binarySearch( friendIDs, 0, unique, writeLocation( resultSet, reply ) );
+
+                        if( index >= 0 )
+                            written[ index ] = true;
+                        break;
+                }
             }
 
-            // In case if empty message
-            builder.append( ";" );
+            for( ; section < LOCATIONS; section++ ){
+                if( section >= 0 )
+                    reply.endMessage();
 
-            reply.addMessage( builder.toString().getBytes( StandardCharsets.UTF_8 ) );
+                reply.beginMessage();
+            }
 
-            return 0;
+            if( written == null ){
+                unique = sortUnique( friendIDs, friendCount );
+                written = new boolean[ unique ];
+            }
 
+            if( fromTable ){
+                for( int i = 0; i < unique; i++ )
+                    LocationTable.instance.write( friendIDs[ i ], reply );
+            } else {
+                writePendingLocations( friendIDs, unique, written, reply );
+            }
+
+            reply.endMessage();
+
+            return 0;
 
         } catch(SQLException e){
             e.printStackTrace();
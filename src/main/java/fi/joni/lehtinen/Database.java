@@ -19,8 +19,9 @@ public class Database {
     private Database(){
         mBasicDataSource = new BasicDataSource();
 
-        // Worker threads + Dispatcher
-        INITIAL_SIZE = Dispatcher.getWorkerCount() + 1;
+        // Crypto and database stage threads are the ones executing requests. Thread per session
+        // mode can use larger pool since sessions waiting for a connection don't block each other.
+        INITIAL_SIZE = Configuration.instance.getInt( "database.poolSize", Stage.crypto.getThreads() + Stage.database.getThreads() );
 
         String propFileName = "build/resources/main/database.properties";
         try(InputStream inputStream = new FileInputStream(propFileName)) {
@@ -39,6 +40,12 @@ public class Database {
             mBasicDataSource.setInitialSize( INITIAL_SIZE );
             mBasicDataSource.setMaxTotal( INITIAL_SIZE );
 
+            // Keep statements of Query prepared per connection. After prepareThreshold executions
+            // PostgreSQL driver switches statement to server side so it is parsed and planned once.
+            mBasicDataSource.setPoolPreparedStatements( true );
+            mBasicDataSource.setMaxOpenPreparedStatements( Query.values().length );
+            mBasicDataSource.addConnectionProperty( "prepareThreshold", Integer.toString( Configuration.instance.getInt( "database.prepareThreshold", 1 ) ) );
+
         } catch (Exception e) {
             e.printStackTrace();
             System.exit( 0 );
@@ -1,74 +1,263 @@
 package fi.joni.lehtinen;
 
 import java.io.IOException;
-import java.nio.channels.SelectableChannel;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
-import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
 import java.util.Iterator;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Dispatcher implements Runnable {
 
     private final static int QUEUE_CAPACITY = 200;
 
+    // Sessions handed to workers and not yet returned, over all Dispatchers
+    private final static AtomicInteger sInFlight = new AtomicInteger();
+    private final static int MAX_IN_FLIGHT = Configuration.instance.getInt( "admission.maxInFlight", getWorkerCount() + QUEUE_CAPACITY );
+    private final static int BUSY_IN_FLIGHT = Configuration.instance.getInt( "admission.busyInFlight", 0 );
+
+    // How often parked sessions are retried when other Dispatchers' workers free capacity
+    private final static long PARKED_RETRY_MILLIS = 10;
+
     private final Selector mSelector;
-    private final Object mLock = new Object();
     private final Executor mThreadPool;
+    private final AtomicInteger mConnectionCount = new AtomicInteger();
+
+    // Sessions waiting for registration or interestops update. Filled by Acceptor and worker
+    // threads and drained only by Dispatcher thread so selection keys are never touched concurrently.
+    private final ConcurrentLinkedQueue<SessionHandler> mChanges = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean mWakeupPending = new AtomicBoolean();
+
+    // Sessions that have got pushes to write
+    private final ConcurrentLinkedQueue<SessionHandler> mPushes = new ConcurrentLinkedQueue<>();
+
+    private final TimingWheel mTimingWheel;
+
+    // Ready sessions that could not be admitted. Their interestops are off so selector
+    // stops reporting them until they are dispatched from here.
+    private final ArrayDeque<SessionHandler> mParked = new ArrayDeque<>();
+
+    public static int getDispatcherCount(){
+        int dispatchers = Configuration.instance.getInt( "dispatchers", 0 );
+
+        if( dispatchers > 0 )
+            return dispatchers;
+
+        // One selector can keep a few workers busy. Add selector per four prosessors.
+        int prosessors = Runtime.getRuntime().availableProcessors();
+
+        return prosessors < 8 ? 1 : prosessors / 4;
+    }
 
     public static int getWorkerCount(){
         int prosessors = Runtime.getRuntime().availableProcessors();
 
-        // ThreadPool(Consumers) = Prosessors - Acceptor(Producer) - Dispatcher
-        int workers = prosessors - 2;
+        // ThreadPool(Consumers) = Prosessors - Acceptor(Producer) - Dispatchers
+        int workers = prosessors - 1 - getDispatcherCount();
 
         return workers < 2 ? 2 : workers;
     }
 
-    public Dispatcher() throws IOException {
-        mSelector = Selector.open();
+    public static int getInFlight(){
+        return sInFlight.get();
+    }
 
-        int threads = getWorkerCount();
+    /*
+     * True when so much work is queued that requests should be answered with busy reply
+     * instead of executing them.
+     */
+    public static boolean isBusy(){
+        return BUSY_IN_FLIGHT > 0 && sInFlight.get() >= BUSY_IN_FLIGHT;
+    }
 
-        mThreadPool = new ThreadPoolExecutor(threads, threads,
-            0L, TimeUnit.MILLISECONDS,
-            new LinkedBlockingQueue<>(QUEUE_CAPACITY),
-            new ThreadPoolExecutor.CallerRunsPolicy());
+    /*
+     * Dispatchers share the network stage thread pool so that one busy selector can use
+     * all the workers.
+     */
+    public Dispatcher( Executor threadPool ) throws IOException {
+        mSelector = Selector.open();
+        mThreadPool = threadPool;
+
+        Configuration configuration = Configuration.instance;
+        mTimingWheel = new TimingWheel(
+            configuration.getLong( "session.wheelTick", 1000 ),
+            configuration.getInt( "session.wheelSize", 512 ),
+            configuration.getLong( "session.idleTimeout", 300 ) * 1000,
+            configuration.getLong( "session.handshakeTimeout", 10 ) * 1000,
+            System.currentTimeMillis() );
     }
 
     public void run() {
         for (;;) {
             try {
-                System.out.println("Connection Count: " + mSelector.keys().size());
-                mSelector.select();
+                processChanges();
+
+                mSelector.select( mParked.isEmpty() ? mTimingWheel.getTickMillis() : PARKED_RETRY_MILLIS );
+
+                long now = System.currentTimeMillis();
+
+                // Parked sessions were ready before anything selected now. They are admitted
+                // in order until capacity runs out, the rest stay parked.
+                while( !mParked.isEmpty() && sInFlight.get() < MAX_IN_FLIGHT ) {
+                    SessionHandler handler = mParked.poll();
+
+                    if( handler.isOpen() ) {
+                        handler.dispatched( now );
+                        admit( handler );
+                    }
+                }
+
                 for ( Iterator i = mSelector.selectedKeys().iterator(); i.hasNext(); ) {
                     SelectionKey selectionKey = (SelectionKey)i.next();
                     i.remove();
 
-                    // Remove interestOps so that multiple threads don't try to handle same client
-                    selectionKey.interestOps(selectionKey.interestOps() & ~selectionKey.readyOps());
+                    if( !selectionKey.isValid() )
+                        continue;
+
+                    // Remove all interestOps so that multiple threads don't try to handle same
+                    // client. Session with a push wants both read and write, clearing only the
+                    // ready one would leave the other armed. Worker sets them again with update.
+                    selectionKey.interestOps( 0 );
 
-                    // if queue is full task will execute in this thread
-                    mThreadPool.execute( (Runnable)selectionKey.attachment() );
+                    dispatch( (SessionHandler)selectionKey.attachment(), now );
                 }
 
-                // Gives time for SelectableChannel.register to acquire selector's inner lock.
-                synchronized (mLock) { }
+                mTimingWheel.advance( now );
             } catch (IOException x) {
                 x.printStackTrace();
             }
         }
     }
 
-    public void register( SelectableChannel selectableChannel, int ops, SessionHandler handler) throws IOException {
-        synchronized (mLock) {
-            // Important! This is needed for selector to release the lock that register needs.
+    /*
+     * Dispatches session that has just become ready.
+     */
+    private void dispatch( SessionHandler handler, long now ) {
+        // One worker at a time drives the session's SSLEngine and RequestProcessor
+        if( handler.isInFlight() || handler.isParked() )
+            return;
+
+        handler.dispatched( now );
+
+        // Parked sessions go first. New ones wait behind them.
+        if( !mParked.isEmpty() || sInFlight.get() >= MAX_IN_FLIGHT ) {
+            park( handler );
+            return;
+        }
+
+        admit( handler );
+    }
+
+    /*
+     * Network stage queue is unbounded, in flight limit is what keeps it short.
+     */
+    private void admit( SessionHandler handler ) {
+        sInFlight.incrementAndGet();
+        mThreadPool.execute( handler );
+    }
+
+    private void park( SessionHandler handler ) {
+        // Not in flight, but it was active just now so it won't be evicted as idle
+        handler.parked();
+        mParked.add( handler );
+        Metrics.increment( "admission.parked" );
+    }
+
+    /*
+     * Queues session for registration. Channel is registered by Dispatcher thread with the
+     * interestops the session currently wants.
+     */
+    public void register( SessionHandler handler ) {
+        mConnectionCount.incrementAndGet();
+        enqueue( handler );
+    }
+
+    /*
+     * Queues session's interestops to be applied by Dispatcher thread. Called by worker
+     * when it has finished with the session.
+     */
+    public void update( SessionHandler handler ) {
+        enqueue( handler );
+    }
+
+    /*
+     * Queues session that has got push to write. Called by the thread that pushed it.
+     */
+    public void push( SessionHandler handler ) {
+        mPushes.offer( handler );
+        wakeup();
+    }
+
+    private void enqueue( SessionHandler handler ) {
+        mChanges.offer( handler );
+        wakeup();
+    }
+
+    private void wakeup() {
+        // Only first change after Dispatcher has started draining wakes the selector up.
+        // Rest of the batch is picked up with it.
+        if( mWakeupPending.compareAndSet( false, true ) ) {
             mSelector.wakeup();
+            Metrics.increment( "dispatcher.wakeups" );
+        }
+    }
+
+    private void processChanges() {
+        // Reset before draining so that change queued after this point wakes selector up again
+        mWakeupPending.set( false );
+
+        SessionHandler handler;
+        while( ( handler = mChanges.poll() ) != null ) {
+            SelectionKey selectionKey = handler.getSelectionKey();
 
-            // register synchronizes with same object that Selector.select does and provides visibility for Dispatcher
-            SelectionKey selectionKey = selectableChannel.register(mSelector, ops, handler);
-            handler.setSelectionKey( selectionKey );
+            if( selectionKey == null ) {
+                try {
+                    handler.setSelectionKey( handler.getChannel().register( mSelector, handler.getInterestOps(), handler ) );
+                    mTimingWheel.add( handler );
+                } catch( ClosedChannelException e ) {
+                    mConnectionCount.decrementAndGet();
+                }
+            } else {
+                sInFlight.decrementAndGet();
+                handler.returned();
+
+                if( !selectionKey.isValid() )
+                    continue;
+
+                int ops = handler.getInterestOps();
+
+                // Push may have come while worker had the session
+                if( ops != 0 && handler.hasPushes() )
+                    ops |= SelectionKey.OP_WRITE;
+
+                selectionKey.interestOps( ops );
+
+                if( handler.takeRunAgain() )
+                    dispatch( handler, System.currentTimeMillis() );
+            }
         }
+
+        while( ( handler = mPushes.poll() ) != null ) {
+            SelectionKey selectionKey = handler.getSelectionKey();
+
+            // Session with worker or waiting for one writes its pushes when it runs next
+            if( selectionKey == null || !selectionKey.isValid() || handler.isInFlight() || handler.isParked() )
+                continue;
+
+            selectionKey.interestOps( selectionKey.interestOps() | SelectionKey.OP_WRITE );
+        }
+    }
+
+    public void cancel( SelectionKey selectionKey ){
+        selectionKey.cancel();
+        mConnectionCount.decrementAndGet();
+    }
+
+    public int getConnectionCount(){
+        return mConnectionCount.get();
     }
 
     public Selector getSelector(){
@@ -0,0 +1,155 @@
+package fi.joni.lehtinen;
+
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+ * Write-behind store for locations. Latest fix of every user is kept in memory and
+ * acknowledged at once. Pending fixes are written with one statement every flushInterval
+ * milliseconds, or sooner when flushSize users have pending fixes. Fixes of the last
+ * interval are lost if the server crashes, orderly shutdown flushes them.
+ *
+ * At most maxPending users can have a pending fix. Fixes of the rest are written
+ * synchronously by the caller.
+ */
+public class LocationStore {
+
+    public static final LocationStore instance = new LocationStore();
+
+    private static final long FLUSH_INTERVAL = Configuration.instance.getLong( "locationStore.flushInterval", 1000 );
+    private static final int FLUSH_SIZE = Configuration.instance.getInt( "locationStore.flushSize", 1000 );
+    private static final int MAX_PENDING = Configuration.instance.getInt( "locationStore.maxPending", 100000 );
+
+    static class Fix {
+        final double mLatitude;
+        final double mLongitude;
+        final double mAccuracy;
+        final long mTimeRecorded;
+        // Fix from batch upload doesn't replace stored location that was recorded later
+        final boolean mOnlyNewer;
+
+        Fix( double latitude, double longitude, double accuracy, long timeRecorded, boolean onlyNewer ) {
+            mLatitude = latitude;
+            mLongitude = longitude;
+            mAccuracy = accuracy;
+            mTimeRecorded = timeRecorded;
+            mOnlyNewer = onlyNewer;
+        }
+    }
+
+    private final ConcurrentHashMap<Long,Fix> mPending = new ConcurrentHashMap<>();
+    // Fixes of the latest flush. Kept until the next flush so that reader whose query
+    // started before the flush committed still finds them.
+    private volatile Map<Long,Fix> mFlushing = new ConcurrentHashMap<>();
+
+    private final AtomicBoolean mFlushRequested = new AtomicBoolean();
+    private ScheduledExecutorService mFlusher;
+
+    private LocationStore() {
+        Metrics.gauge( "locationStore.pending", mPending::size );
+
+        if( FLUSH_INTERVAL <= 0 )
+            return;
+
+        mFlusher = Executors.newSingleThreadScheduledExecutor( runnable -> {
+            Thread thread = new Thread( runnable, "LocationStore" );
+            thread.setDaemon( true );
+            return thread;
+        });
+
+        mFlusher.scheduleWithFixedDelay( this::flush, FLUSH_INTERVAL, FLUSH_INTERVAL, TimeUnit.MILLISECONDS );
+        Runtime.getRuntime().addShutdownHook( new Thread( this::flush, "LocationStore shutdown" ) );
+    }
+
+    /*
+     * Keeps fix to be written later. Returns false when write-behind is disabled or full and
+     * the caller has to write the fix itself.
+     */
+    boolean put( long userID, double latitude, double longitude, double accuracy, long timeRecorded, boolean onlyNewer ) {
+        if( mFlusher == null )
+            return false;
+
+        if( mPending.size() >= MAX_PENDING && !mPending.containsKey( userID ) ) {
+            Metrics.increment( "locationStore.overflow" );
+            return false;
+        }
+
+        mPending.merge( userID, new Fix( latitude, longitude, accuracy, timeRecorded, onlyNewer ), LocationStore::newer );
+        CircleVersions.instance.locationChanged( userID );
+
+        if( mPending.size() >= FLUSH_SIZE && mFlushRequested.compareAndSet( false, true ) )
+            mFlusher.execute( this::flush );
+
+        return true;
+    }
+
+    /*
+     * Returns fix of user that is not yet in database or null.
+     */
+    Fix getPending( long userID ) {
+        Fix fix = mPending.get( userID );
+        return fix != null ? fix : mFlushing.get( userID );
+    }
+
+    // Live fix replaces pending one. Fix of batch replaces only older one.
+    private static Fix newer( Fix pending, Fix fix ) {
+        return !fix.mOnlyNewer || fix.mTimeRecorded >= pending.mTimeRecorded ? fix : pending;
+    }
+
+    /*
+     * Writes pending fixes with one statement. Failed fixes go back to pending unless a
+     * newer fix has arrived meanwhile.
+     */
+    private synchronized void flush() {
+        mFlushRequested.set( false );
+
+        if( mPending.isEmpty() )
+            return;
+
+        long started = System.nanoTime();
+
+        ConcurrentHashMap<Long,Fix> batch = new ConcurrentHashMap<>();
+        mFlushing = batch;
+
+        // Fix is in batch before it leaves pending, so reader always finds it in one of them.
+        // Fix that was replaced meanwhile stays pending and goes with the next flush.
+        for( Map.Entry<Long,Fix> entry : mPending.entrySet() ) {
+            batch.put( entry.getKey(), entry.getValue() );
+
+            if( !mPending.remove( entry.getKey(), entry.getValue() ) )
+                batch.remove( entry.getKey(), entry.getValue() );
+        }
+
+        int result;
+
+        try {
+            DAO dao = new DAO();
+            dao.init();
+
+            try {
+                result = dao.addLocations( batch );
+            } finally {
+                // Release connection back to connection pool
+                dao.close();
+            }
+        } catch( SQLException e ) {
+            e.printStackTrace();
+            result = -1;
+        }
+
+        if( result != 0 ) {
+            for( Map.Entry<Long,Fix> entry : batch.entrySet() )
+                mPending.merge( entry.getKey(), entry.getValue(), ( pending, failed ) -> newer( failed, pending ) );
+
+            Metrics.increment( "locationStore.flush.failed" );
+        }
+
+        Metrics.record( "locationStore.flush.fixes", batch.size() );
+        Metrics.record( "locationStore.flush.nanos", System.nanoTime() - started );
+    }
+}
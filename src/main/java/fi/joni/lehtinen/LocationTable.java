@@ -0,0 +1,218 @@
+package fi.joni.lehtinen;
+
+import java.sql.SQLException;
+import java.util.concurrent.locks.StampedLock;
+
+/*
+ * Latest location of every user in memory. Locations are kept in primitive arrays indexed by
+ * open addressing table, so reading one allocates nothing. Filled from location table at
+ * startup and kept current by LOCATION requests. CIRCLE_DATA reads friend locations from
+ * here once table is ready, until then from database.
+ *
+ * Readers don't lock. They read optimistically and retry with read lock only if a write
+ * happened meanwhile.
+ */
+public class LocationTable {
+
+    public static final LocationTable instance = new LocationTable();
+
+    private static final boolean ENABLED = Configuration.instance.getBoolean( "locationTable.enabled", true );
+    private static final float LOAD_FACTOR = 0.5f;
+
+    // Bytes per slot: user id, three coordinates and time
+    private static final int SLOT_BYTES = 5 * 8;
+
+    /*
+     * Arrays of one capacity. Replaced as whole when table grows so reader always sees arrays
+     * of the same length. User ids are positive, 0 marks a free slot.
+     */
+    private static class Slots {
+        final long[] mUsers;
+        final double[] mLatitudes;
+        final double[] mLongitudes;
+        final double[] mAccuracies;
+        final long[] mTimes;
+        final int mMask;
+
+        Slots( int capacity ) {
+            mUsers = new long[ capacity ];
+            mLatitudes = new double[ capacity ];
+            mLongitudes = new double[ capacity ];
+            mAccuracies = new double[ capacity ];
+            mTimes = new long[ capacity ];
+            mMask = capacity - 1;
+        }
+
+        // Slot of user or the free slot where user would go
+        int find( long userID ) {
+            long hash = userID * 0x9E3779B97F4A7C15L;
+            int slot = (int)( hash ^ ( hash >>> 32 ) ) & mMask;
+
+            while( mUsers[ slot ] != 0 && mUsers[ slot ] != userID )
+                slot = ( slot + 1 ) & mMask;
+
+            return slot;
+        }
+    }
+
+    private final StampedLock mLock = new StampedLock();
+    private Slots mSlots = new Slots( 1024 );
+    private int mSize;
+    private volatile boolean mReady;
+
+    private LocationTable() {
+        Metrics.gauge( "locationTable.users", () -> mSize );
+        Metrics.gauge( "locationTable.bytes", () -> (long)mSlots.mUsers.length * SLOT_BYTES );
+        Metrics.gauge( "locationTable.bytesPerUser", () -> mSize == 0 ? 0 : (long)mSlots.mUsers.length * SLOT_BYTES / mSize );
+    }
+
+    /*
+     * Loads stored locations. Called once at startup before clients are accepted. Table is
+     * used only if loading succeeds.
+     */
+    void warm() {
+        if( !ENABLED )
+            return;
+
+        long started = System.nanoTime();
+
+        try {
+            DAO dao = new DAO();
+            dao.init();
+
+            try {
+                mReady = dao.loadLocations() == 0;
+            } finally {
+                // Release connection back to connection pool
+                dao.close();
+            }
+        } catch( SQLException e ) {
+            e.printStackTrace();
+        }
+
+        Metrics.record( "locationTable.warm.nanos", System.nanoTime() - started );
+    }
+
+    boolean isReady() {
+        return mReady;
+    }
+
+    /*
+     * Stores location of user. With onlyNewer location recorded later is kept.
+     */
+    void put( long userID, double latitude, double longitude, double accuracy, long timeRecorded, boolean onlyNewer ) {
+        if( !ENABLED )
+            return;
+
+        long stamp = mLock.writeLock();
+        try {
+            Slots slots = mSlots;
+            int slot = slots.find( userID );
+
+            if( slots.mUsers[ slot ] == userID ) {
+                if( onlyNewer && slots.mTimes[ slot ] > timeRecorded )
+                    return;
+            } else {
+                if( ++mSize > slots.mUsers.length * LOAD_FACTOR ) {
+                    slots = grow( slots );
+                    slot = slots.find( userID );
+                }
+
+                slots.mUsers[ slot ] = userID;
+            }
+
+            slots.mLatitudes[ slot ] = latitude;
+            slots.mLongitudes[ slot ] = longitude;
+            slots.mAccuracies[ slot ] = accuracy;
+            slots.mTimes[ slot ] = timeRecorded;
+        } finally {
+            mLock.unlockWrite( stamp );
+        }
+    }
+
+    /*
+     * Writes location of user as CIRCLE_DATA location record. Returns false when user has
+     * no location.
+     */
+    boolean write( long userID, ReplyBuilder reply ) {
+        long stamp = mLock.tryOptimisticRead();
+        boolean locked = false;
+
+        boolean found;
+        double latitude, longitude, accuracy;
+        long timeRecorded;
+
+        for(;;) {
+            Slots slots = mSlots;
+            int slot = slots.find( userID );
+
+            found = slots.mUsers[ slot ] == userID;
+            latitude = slots.mLatitudes[ slot ];
+            longitude = slots.mLongitudes[ slot ];
+            accuracy = slots.mAccuracies[ slot ];
+            timeRecorded = slots.mTimes[ slot ];
+
+            if( locked || mLock.validate( stamp ) )
+                break;
+
+            stamp = mLock.readLock();
+            locked = true;
+        }
+
+        if( locked )
+            mLock.unlockRead( stamp );
+
+        if( !found )
+            return false;
+
+        reply.addId( userID )
+                .addCoordinate( latitude )
+                .addCoordinate( longitude )
+                .addCoordinate( accuracy )
+                .addTime( timeRecorded )
+                .endRecord();
+
+        return true;
+    }
+
+    /*
+     * Time the location of user was recorded, Long.MIN_VALUE when user has none.
+     */
+    long getTime( long userID ) {
+        long stamp = mLock.tryOptimisticRead();
+        Slots slots = mSlots;
+        int slot = slots.find( userID );
+        long time = slots.mUsers[ slot ] == userID ? slots.mTimes[ slot ] : Long.MIN_VALUE;
+
+        if( mLock.validate( stamp ) )
+            return time;
+
+        stamp = mLock.readLock();
+        try {
+            slots = mSlots;
+            slot = slots.find( userID );
+            return slots.mUsers[ slot ] == userID ? slots.mTimes[ slot ] : Long.MIN_VALUE;
+        } finally {
+            mLock.unlockRead( stamp );
+        }
+    }
+
+    private Slots grow( Slots slots ) {
+        Slots grown = new Slots( slots.mUsers.length << 1 );
+
+        for( int i = 0; i < slots.mUsers.length; i++ ) {
+            if( slots.mUsers[ i ] == 0 )
+                continue;
+
+            int slot = grown.find( slots.mUsers[ i ] );
+            grown.mUsers[ slot ] = slots.mUsers[ i ];
+            grown.mLatitudes[ slot ] = slots.mLatitudes[ i ];
+            grown.mLongitudes[ slot ] = slots.mLongitudes[ i ];
+            grown.mAccuracies[ slot ] = slots.mAccuracies[ i ];
+            grown.mTimes[ slot ] = slots.mTimes[ i ];
+        }
+
+        mSlots = grown;
+        return grown;
+    }
+}
@@ -0,0 +1,190 @@
+package fi.joni.lehtinen;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/*
+ * Asynchronous logger. Request threads only put entry to preallocated ring buffer and
+ * background thread formats and writes it. When ring is full entry is dropped and counted,
+ * logging never blocks the caller.
+ *
+ * Every category has its own level, log.level.<category>, and sampling, log.sample.<category>=N
+ * keeps one of N entries below WARN. Defaults come from log.level and log.sample.
+ */
+public class Log {
+
+    public enum Level {DEBUG,INFO,WARN,ERROR}
+
+    private static final int RING_SIZE = Integer.highestOneBit( Math.max( 2, Configuration.instance.getInt( "log.bufferSize", 8192 ) ) );
+    private static final int RING_MASK = RING_SIZE - 1;
+
+    // Writer sleeps this long when there is nothing to write
+    private static final long IDLE_NANOS = 10_000_000;
+
+    private static final Entry[] sRing = new Entry[ RING_SIZE ];
+    private static final AtomicLong sHead = new AtomicLong();
+    private static long sTail = 0;
+
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ISO_LOCAL_TIME;
+
+    /*
+     * Slot of the ring. Sequence tells whose turn it is: producer may fill the slot when
+     * sequence equals its position and writer may read it when sequence is position + 1.
+     */
+    private static class Entry {
+        volatile long mSequence;
+        long mTime;
+        Level mLevel;
+        String mCategory;
+        String mMessage;
+        Throwable mThrowable;
+    }
+
+    static {
+        for( int i = 0; i < RING_SIZE; i++ ) {
+            sRing[ i ] = new Entry();
+            sRing[ i ].mSequence = i;
+        }
+
+        Thread writer = new Thread( Log::write, "Log" );
+        writer.setDaemon( true );
+        writer.start();
+    }
+
+    public static Category category( String name ) {
+        return new Category( name );
+    }
+
+    public static class Category {
+
+        private final String mName;
+        private final Level mLevel;
+        private final int mSampleEvery;
+        private final AtomicLong mSampleCounter = new AtomicLong();
+
+        private Category( String name ) {
+            Configuration configuration = Configuration.instance;
+
+            mName = name;
+            mLevel = Level.valueOf( configuration.getString( "log.level." + name, configuration.getString( "log.level", "INFO" ) ).toUpperCase() );
+            mSampleEvery = Math.max( 1, configuration.getInt( "log.sample." + name, configuration.getInt( "log.sample", 1 ) ) );
+        }
+
+        public boolean isEnabled( Level level ) {
+            return level.compareTo( mLevel ) >= 0;
+        }
+
+        public void debug( Supplier<String> message ) {
+            log( Level.DEBUG, message );
+        }
+
+        public void info( String message ) {
+            log( Level.INFO, message, null );
+        }
+
+        public void info( Supplier<String> message ) {
+            log( Level.INFO, message );
+        }
+
+        public void warn( String message ) {
+            log( Level.WARN, message, null );
+        }
+
+        public void error( String message, Throwable throwable ) {
+            log( Level.ERROR, message, throwable );
+        }
+
+        /*
+         * Message is built only if entry passes level and sampling.
+         */
+        public void log( Level level, Supplier<String> message ) {
+            if( isEnabled( level ) && sampled( level ) )
+                enqueue( this, level, message.get(), null );
+        }
+
+        public void log( Level level, String message, Throwable throwable ) {
+            if( isEnabled( level ) && sampled( level ) )
+                enqueue( this, level, message, throwable );
+        }
+
+        private boolean sampled( Level level ) {
+            return mSampleEvery == 1 || level.compareTo( Level.WARN ) >= 0 || mSampleCounter.getAndIncrement() % mSampleEvery == 0;
+        }
+    }
+
+    private static void enqueue( Category category, Level level, String message, Throwable throwable ) {
+        for(;;) {
+            long position = sHead.get();
+            Entry entry = sRing[ (int)position & RING_MASK ];
+            long sequence = entry.mSequence;
+
+            if( sequence < position ) {
+                // Writer is behind a whole ring
+                Metrics.increment( "log.dropped" );
+                return;
+            }
+
+            if( sequence == position && sHead.compareAndSet( position, position + 1 ) ) {
+                entry.mTime = System.currentTimeMillis();
+                entry.mLevel = level;
+                entry.mCategory = category.mName;
+                entry.mMessage = message;
+                entry.mThrowable = throwable;
+
+                // Publish to writer
+                entry.mSequence = position + 1;
+                return;
+            }
+        }
+    }
+
+    private static void write() {
+        String file = Configuration.instance.getString( "log.file", "" );
+        ZoneId zone = ZoneId.systemDefault();
+
+        try( Writer out = new BufferedWriter( new OutputStreamWriter( file.isEmpty() ? System.out : new FileOutputStream( file, true ), StandardCharsets.UTF_8 ), 1 << 16 ) ) {
+            PrintWriter printWriter = new PrintWriter( out );
+
+            for(;;) {
+                Entry entry = sRing[ (int)sTail & RING_MASK ];
+
+                if( entry.mSequence != sTail + 1 ) {
+                    // Ring is empty. Flush what has been written and wait for more.
+                    printWriter.flush();
+                    LockSupport.parkNanos( IDLE_NANOS );
+                    continue;
+                }
+
+                printWriter.append( LocalDateTime.ofInstant( Instant.ofEpochMilli( entry.mTime ), zone ).format( TIME_FORMAT ) )
+                        .append( ' ' ).append( entry.mLevel.name() )
+                        .append( " [" ).append( entry.mCategory ).append( "] " )
+                        .append( entry.mMessage )
+                        .append( System.lineSeparator() );
+
+                if( entry.mThrowable != null )
+                    entry.mThrowable.printStackTrace( printWriter );
+
+                entry.mMessage = null;
+                entry.mThrowable = null;
+
+                // Hand slot back to producers for the next round of the ring
+                entry.mSequence = sTail + RING_SIZE;
+                sTail++;
+            }
+        } catch( IOException e ) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package fi.joni.lehtinen;
+
+import java.util.Arrays;
+
+/*
+ * Map from long to object without boxing the keys. Open addressing with linear probing,
+ * removal shifts following entries back so no tombstones are left. Not thread safe.
+ */
+class LongMap<V> {
+
+    private static final float LOAD_FACTOR = 0.5f;
+
+    // Key 0 marks a free slot, value of key 0 is kept aside
+    private long[] mKeys;
+    private Object[] mValues;
+    private int mMask;
+    private int mSize;
+
+    private boolean mHasZero;
+    private Object mZeroValue;
+
+    LongMap( int expectedSize ) {
+        int capacity = Integer.highestOneBit( Math.max( 4, (int)( expectedSize / LOAD_FACTOR ) ) - 1 ) << 1;
+        mKeys = new long[ capacity ];
+        mValues = new Object[ capacity ];
+        mMask = capacity - 1;
+    }
+
+    @SuppressWarnings( "unchecked" )
+    V get( long key ) {
+        if( key == 0 )
+            return (V)mZeroValue;
+
+        for( int slot = slot( key ); mKeys[ slot ] != 0; slot = ( slot + 1 ) & mMask ) {
+            if( mKeys[ slot ] == key )
+                return (V)mValues[ slot ];
+        }
+
+        return null;
+    }
+
+    void put( long key, V value ) {
+        if( key == 0 ) {
+            if( !mHasZero )
+                mSize++;
+
+            mHasZero = true;
+            mZeroValue = value;
+            return;
+        }
+
+        int slot = slot( key );
+
+        for( ; mKeys[ slot ] != 0; slot = ( slot + 1 ) & mMask ) {
+            if( mKeys[ slot ] == key ) {
+                mValues[ slot ] = value;
+                return;
+            }
+        }
+
+        mKeys[ slot ] = key;
+        mValues[ slot ] = value;
+
+        if( ++mSize > mKeys.length * LOAD_FACTOR )
+            resize( mKeys.length << 1 );
+    }
+
+    @SuppressWarnings( "unchecked" )
+    V remove( long key ) {
+        if( key == 0 ) {
+            V value = (V)mZeroValue;
+
+            if( mHasZero )
+                mSize--;
+
+            mHasZero = false;
+            mZeroValue = null;
+            return value;
+        }
+
+        int slot = slot( key );
+
+        for( ; mKeys[ slot ] != key; slot = ( slot + 1 ) & mMask ) {
+            if( mKeys[ slot ] == 0 )
+                return null;
+        }
+
+        V value = (V)mValues[ slot ];
+        mSize--;
+
+        // Move back entries that probed past the freed slot
+        int free = slot;
+
+        for( int next = ( free + 1 ) & mMask; mKeys[ next ] != 0; next = ( next + 1 ) & mMask ) {
+            int home = slot( mKeys[ next ] );
+
+            if( ( ( next - home ) & mMask ) >= ( ( next - free ) & mMask ) ) {
+                mKeys[ free ] = mKeys[ next ];
+                mValues[ free ] = mValues[ next ];
+                free = next;
+            }
+        }
+
+        mKeys[ free ] = 0;
+        mValues[ free ] = null;
+
+        return value;
+    }
+
+    /*
+     * Removes the first entry at or after slot and returns its value, or null when map is
+     * empty. Random slot gives random eviction.
+     */
+    V evict( int slot ) {
+        for( int i = 0; i < mKeys.length; i++ ) {
+            long key = mKeys[ ( slot + i ) & mMask ];
+
+            if( key != 0 )
+                return remove( key );
+        }
+
+        return mHasZero ? remove( 0 ) : null;
+    }
+
+    void clear() {
+        Arrays.fill( mKeys, 0 );
+        Arrays.fill( mValues, null );
+        mHasZero = false;
+        mZeroValue = null;
+        mSize = 0;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    /*
+     * Bytes taken by the tables, without the values.
+     */
+    long tableBytes() {
+        return mKeys.length * ( 8L + 4L );
+    }
+
+    private int slot( long key ) {
+        // Ids are sequential, spread them over the table
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int)( hash ^ ( hash >>> 32 ) ) & mMask;
+    }
+
+    private void resize( int capacity ) {
+        long[] keys = mKeys;
+        Object[] values = mValues;
+
+        mKeys = new long[ capacity ];
+        mValues = new Object[ capacity ];
+        mMask = capacity - 1;
+
+        for( int i = 0; i < keys.length; i++ ) {
+            if( keys[ i ] == 0 )
+                continue;
+
+            int slot = slot( keys[ i ] );
+
+            while( mKeys[ slot ] != 0 )
+                slot = ( slot + 1 ) & mMask;
+
+            mKeys[ slot ] = keys[ i ];
+            mValues[ slot ] = values[ i ];
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package fi.joni.lehtinen;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+public class Metrics {
+
+    private static final ConcurrentHashMap<String, LongAdder> sCounters = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, LongSupplier> sGauges = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, Distribution> sDistributions = new ConcurrentHashMap<>();
+
+    // Counter values at previous report. Used to show rate since last report.
+    private static final Map<String, Long> sLastReported = new HashMap<>();
+
+    private static class Distribution {
+        final LongAdder mCount = new LongAdder();
+        final LongAdder mTotal = new LongAdder();
+        final LongAccumulator mMax = new LongAccumulator( Math::max, 0 );
+    }
+
+    public static void increment( String name ){
+        add( name, 1 );
+    }
+
+    public static void add( String name, long value ){
+        sCounters.computeIfAbsent( name, k -> new LongAdder() ).add( value );
+    }
+
+    public static long get( String name ){
+        LongAdder counter = sCounters.get( name );
+        return counter == null ? 0 : counter.sum();
+    }
+
+    /*
+     * Records single sample like latency in nanoseconds. Reported as count, average and
+     * maximum since previous report.
+     */
+    public static void record( String name, long value ){
+        Distribution distribution = sDistributions.computeIfAbsent( name, k -> new Distribution() );
+        distribution.mCount.increment();
+        distribution.mTotal.add( value );
+        distribution.mMax.accumulate( value );
+    }
+
+    /*
+     * Gauges are sampled only when report is built so they can be backed by anything
+     * that is cheap to read, like a queue size or an atomic counter.
+     */
+    public static void gauge( String name, LongSupplier supplier ){
+        sGauges.put( name, supplier );
+    }
+
+    public static synchronized String report(){
+        Map<String, String> values = new TreeMap<>();
+
+        for( Map.Entry<String, LongAdder> entry : sCounters.entrySet() ) {
+            long value = entry.getValue().sum();
+            Long last = sLastReported.put( entry.getKey(), value );
+            values.put( entry.getKey(), value + " (+" + ( value - ( last == null ? 0 : last ) ) + ")" );
+        }
+
+        for( Map.Entry<String, LongSupplier> entry : sGauges.entrySet() )
+            values.put( entry.getKey(), Long.toString( entry.getValue().getAsLong() ) );
+
+        for( Map.Entry<String, Distribution> entry : sDistributions.entrySet() ) {
+            Distribution distribution = entry.getValue();
+            long count = distribution.mCount.sumThenReset();
+            long total = distribution.mTotal.sumThenReset();
+            long max = distribution.mMax.getThenReset();
+            values.put( entry.getKey(), "count " + count + ", avg " + ( count == 0 ? 0 : total / count ) + ", max " + max );
+        }
+
+        StringBuilder builder = new StringBuilder();
+        // Log entry has the time
+        builder.append( "Metrics" );
+
+        for( Map.Entry<String, String> entry : values.entrySet() )
+            builder.append( "\n    " ).append( entry.getKey() ).append( " = " ).append( entry.getValue() );
+
+        return builder.toString();
+    }
+
+    public static void startReporter( long intervalSeconds ){
+        if( intervalSeconds <= 0 )
+            return;
+
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor( runnable -> {
+            Thread thread = new Thread( runnable, "Metrics" );
+            thread.setDaemon( true );
+            return thread;
+        });
+
+        Log.Category log = Log.category( "metrics" );
+        reporter.scheduleAtFixedRate( () -> log.info( Metrics::report ), intervalSeconds, intervalSeconds, TimeUnit.SECONDS );
+    }
+}
@@ -0,0 +1,89 @@
+package fi.joni.lehtinen;
+
+/*
+ * Every statement DAO executes. Statement text never changes, so the connection pool keeps
+ * each one prepared per connection and PostgreSQL plans it once instead of every request.
+ * Executions are recorded per statement as query.<name>.nanos.
+ */
+public enum Query {
+
+    // Users
+    EMAIL_TAKEN( "SELECT email FROM \"FriendFinder\".user WHERE email=?" ),
+    GET_USER( "SELECT * FROM \"FriendFinder\".user WHERE email=?" ),
+    REGISTER( "INSERT INTO \"FriendFinder\".user (email,firstname,lastname,iterations,salt,password) VALUES (?,?,?,?,?,?)" ),
+    USER_ID( "SELECT id FROM \"FriendFinder\".user WHERE email = ?" ),
+
+    // Locations
+    ADD_LOCATION( "WITH updated AS ( UPDATE \"FriendFinder\".location SET latitude = ?, longitude = ?, accuracy = ?, time_recorded = ? WHERE user_id = ? RETURNING id ) " +
+            "INSERT INTO \"FriendFinder\".location (user_id,latitude,longitude,accuracy,time_recorded) SELECT ?,?,?,?,? " +
+            "WHERE NOT EXISTS ( SELECT 1 FROM \"FriendFinder\".location WHERE user_id = ? )" ),
+    ADD_LOCATION_IF_NEWER( "WITH updated AS ( UPDATE \"FriendFinder\".location SET latitude = ?, longitude = ?, accuracy = ?, time_recorded = ? WHERE user_id = ? AND time_recorded <= ? RETURNING id ) " +
+            "INSERT INTO \"FriendFinder\".location (user_id,latitude,longitude,accuracy,time_recorded) SELECT ?,?,?,?,? " +
+            "WHERE NOT EXISTS ( SELECT 1 FROM \"FriendFinder\".location WHERE user_id = ? )" ),
+    ADD_LOCATIONS( "WITH fix AS ( SELECT * FROM unnest( ?, ?, ?, ?, ?, ? ) AS f( user_id, latitude, longitude, accuracy, time_recorded, only_newer ) ), " +
+            "updated AS ( UPDATE \"FriendFinder\".location SET latitude = fix.latitude, longitude = fix.longitude, accuracy = fix.accuracy, time_recorded = fix.time_recorded FROM fix " +
+            "WHERE \"FriendFinder\".location.user_id = fix.user_id AND ( NOT fix.only_newer OR \"FriendFinder\".location.time_recorded <= fix.time_recorded ) RETURNING fix.user_id ) " +
+            "INSERT INTO \"FriendFinder\".location (user_id,latitude,longitude,accuracy,time_recorded) SELECT user_id, latitude, longitude, accuracy, time_recorded FROM fix " +
+            "WHERE NOT EXISTS ( SELECT 1 FROM \"FriendFinder\".location WHERE \"FriendFinder\".location.user_id = fix.user_id )" ),
+    ALL_LOCATIONS( "SELECT user_id, latitude, longitude, accuracy, time_recorded FROM \"FriendFinder\".location" ),
+    LOCATION_TIME( "SELECT time_recorded FROM \"FriendFinder\".location WHERE user_id = ?" ),
+    CHANGED_LOCATIONS( "SELECT * FROM \"FriendFinder\".location WHERE \"FriendFinder\".location.user_id = ANY( ? )" ),
+
+    // Circles
+    CIRCLE_MEMBERS( "SELECT user_id AS id, confirmed FROM \"FriendFinder\".groupmembers WHERE group_id = ?" ),
+    USER_CIRCLES( "SELECT group_id AS id, confirmed FROM \"FriendFinder\".groupmembers WHERE user_id = ?" ),
+    CREATE_CIRCLE( "INSERT INTO \"FriendFinder\".group (name) VALUES (?)", true ),
+    ADD_CIRCLE_OWNER( "INSERT INTO \"FriendFinder\".groupmembers (group_id, user_id, confirmed) VALUES (?,?,true)" ),
+    JOIN_REQUESTS( "SELECT * FROM \"FriendFinder\".group WHERE \"FriendFinder\".group.id IN ( SELECT group_id FROM \"FriendFinder\".groupmembers WHERE user_id = ? AND confirmed = FALSE )" ),
+    CONFIRM_CIRCLE( "UPDATE \"FriendFinder\".groupmembers set confirmed = TRUE WHERE group_id = ? AND user_id = ?" ),
+    CIRCLE_MEMBER_NAMES( "SELECT id, firstname, lastname FROM \"FriendFinder\".user WHERE \"FriendFinder\".user.id IN ( SELECT user_id FROM \"FriendFinder\".groupmembers WHERE group_id = ? AND confirmed = TRUE AND user_id <> ? )" ),
+    DECLINE_CIRCLE( "DELETE FROM \"FriendFinder\".groupmembers WHERE group_id = ? AND user_id = ?" ),
+    DELETE_CIRCLE( "DELETE FROM \"FriendFinder\".group WHERE id = ? AND ( SELECT COUNT(*) FROM \"FriendFinder\".groupmembers WHERE group_id = ? AND user_id = ? ) = 1" ),
+    ADD_CIRCLE_MEMBER( "INSERT INTO \"FriendFinder\".groupmembers (group_id, user_id) VALUES (?,?)" ),
+    REMOVE_CIRCLE( "DELETE FROM \"FriendFinder\".group WHERE id = ?" ),
+    REMOVE_CIRCLE_MEMBER( "DELETE FROM \"FriendFinder\".groupmembers WHERE group_id = ? AND user_id = ? AND ( SELECT COUNT(*) FROM \"FriendFinder\".groupmembers WHERE group_id = ? AND user_id = ? ) = 1" ),
+
+    // CIRCLE_DATA
+    CIRCLE_DATA( "WITH own AS ( SELECT group_id, confirmed FROM \"FriendFinder\".groupmembers WHERE user_id = ? ), " +
+            "member AS ( SELECT id, group_id, user_id FROM \"FriendFinder\".groupmembers WHERE group_id IN ( SELECT group_id FROM own WHERE confirmed ) ), " +
+            "friend AS ( SELECT DISTINCT user_id FROM member WHERE user_id <> ? ) " +
+            "SELECT 0 AS section, g.id, NULL::bigint AS group_id, NULL::bigint AS user_id, g.name::text AS name, NULL::text AS lastname, NULL::float8 AS latitude, NULL::float8 AS longitude, NULL::float8 AS accuracy, NULL::bigint AS time_recorded " +
+            "FROM \"FriendFinder\".group g WHERE g.id IN ( SELECT group_id FROM own WHERE confirmed ) " +
+            "UNION ALL SELECT 1, id, group_id, user_id, NULL, NULL, NULL, NULL, NULL, NULL FROM member " +
+            "UNION ALL SELECT 2, u.id, NULL, NULL, u.firstname, u.lastname, NULL, NULL, NULL, NULL FROM \"FriendFinder\".user u WHERE u.id IN ( SELECT user_id FROM friend ) " +
+            "UNION ALL SELECT 3, g.id, NULL, NULL, g.name, NULL, NULL, NULL, NULL, NULL FROM \"FriendFinder\".group g WHERE g.id IN ( SELECT group_id FROM own WHERE NOT confirmed ) " +
+            "UNION ALL SELECT 4, NULL, NULL, l.user_id, NULL, NULL, l.latitude, l.longitude, l.accuracy, l.time_recorded FROM \"FriendFinder\".location l WHERE ? AND l.user_id IN ( SELECT user_id FROM friend ) " +
+            "ORDER BY section" );
+
+    final String mSql;
+    // Statement is prepared to return generated keys
+    final boolean mGeneratedKeys;
+    final String mMetric;
+
+    Query( String sql ) {
+        this( sql, false );
+    }
+
+    Query( String sql, boolean generatedKeys ) {
+        mSql = sql;
+        mGeneratedKeys = generatedKeys;
+        mMetric = "query." + metricName( name() ) + ".nanos";
+    }
+
+    // EMAIL_TAKEN -> emailTaken
+    private static String metricName( String name ) {
+        StringBuilder builder = new StringBuilder();
+        boolean upper = false;
+
+        for( char c : name.toCharArray() ) {
+            if( c == '_' ) {
+                upper = true;
+            } else {
+                builder.append( upper ? c : Character.toLowerCase( c ) );
+                upper = false;
+            }
+        }
+
+        return builder.toString();
+    }
+}
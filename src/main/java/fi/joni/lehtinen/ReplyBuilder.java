@@ -0,0 +1,46 @@
+package fi.joni.lehtinen;
+
+import fi.joni.lehtinen.friendfinder.connectionprotocol.Reply;
+
+import java.nio.ByteBuffer;
+
+/*
+ * Collects reply of one request in the wire format of the session. Messages are either
+ * added as raw bytes or built from records of typed fields so that DAO doesn't need to
+ * know which format is in use.
+ */
+public abstract class ReplyBuilder {
+
+    public Reply.ReplyCode mReplyCode;
+
+    public abstract void addMessage( byte[] message );
+
+    /*
+     * Starts message made of records. Fields are added with the add methods and each
+     * record is ended with endRecord.
+     */
+    public abstract void beginMessage();
+
+    public abstract ReplyBuilder addId( long value );
+
+    public abstract ReplyBuilder addCoordinate( double value );
+
+    public abstract ReplyBuilder addTime( long value );
+
+    public abstract ReplyBuilder addString( String value );
+
+    public abstract void endRecord();
+
+    public abstract void endMessage();
+
+    /*
+     * Drops every message added so far, including one left unfinished. Used when request
+     * fails after it has started to write the reply.
+     */
+    public abstract void clear();
+
+    /*
+     * Returns the encoded reply ready to be written to the channel.
+     */
+    abstract ByteBuffer toBuffer();
+}
@@ -0,0 +1,840 @@
+package fi.joni.lehtinen;
+
+import fi.joni.lehtinen.friendfinder.connectionprotocol.*;
+import fi.joni.lehtinen.friendfinder.connectionprotocol.dto.*;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
+
+/*
+ * Protocol state of one client connection. Collects request bytes, executes complete
+ * requests and builds replies. Does no I/O so it can be driven both by SessionHandler
+ * in selector mode and by BlockingSessionHandler in thread per session mode.
+ */
+public class RequestProcessor {
+
+    // Requests are terminated by newline. Pipelining client may send several before reading replies.
+    private static final byte MESSAGE_END = '\n';
+    private static final int MAX_PIPELINED = Configuration.instance.getInt( "admission.maxPipelined", 16 );
+
+    private static final byte[] LOGIN = ConnectionProtocol.Protocols.LOGIN.name().getBytes( StandardCharsets.UTF_8 );
+    private static final byte[] REGISTER = ConnectionProtocol.Protocols.REGISTER.name().getBytes( StandardCharsets.UTF_8 );
+
+    // LOCATION, user id, latitude, longitude, accuracy, time recorded
+    private static final int LOCATION_FIELDS = 6;
+    // Batch of fixes repeats latitude, longitude, accuracy and time recorded
+    private static final int FIX_FIELDS = 4;
+    private static final int BINARY_FIX_BYTES = 32;
+
+    // HELLO flags server accepts
+    private static final int SUPPORTED_FLAGS = Configuration.instance.getBoolean( "compression.enabled", true ) ? BinaryProtocol.FLAG_DEFLATE : 0;
+
+    private static final Log.Category LOG = Log.category( "request" );
+
+    private ByteBuffer mRequestBB;
+    private RequestTokenizer mTokenizer = new RequestTokenizer();
+    private ByteBuffer mReplyBB;
+    private boolean mNegotiated = false;
+    private boolean mBinary = false;
+    private BinaryReplyBuilder mBinaryReply;
+    private boolean mIsLoggedIn = false;
+    private long mUserID;
+
+    // Session that takes pushes. Null when session can't be written to outside of replies.
+    private SessionRegistry.Subscriber mSubscriber;
+    private boolean mSubscribed = false;
+    private long mSubscribedUserID;
+
+    void setSubscriber( SessionRegistry.Subscriber subscriber ) {
+        mSubscriber = subscriber;
+    }
+
+    /*
+     * Moves bytes from channel's read buffer to request buffer.
+     * Returns true when complete request has been received.
+     */
+    boolean receive( ByteBuffer readBuffer ) {
+        // Prepare mRequest buffer so that it can be given to ConnectionProtocol.copyReadBufferTo
+        // as a parameter
+        if(mRequestBB == null){
+            mRequestBB = BufferPool.instance.acquire( readBuffer.capacity() );
+        } else if(readBuffer.position() - mRequestBB.position() > mRequestBB.remaining()){
+            growRequestBuffer( readBuffer );
+        }
+
+        // First byte of the connection tells which protocol client speaks
+        if( !mNegotiated && readBuffer.position() > 0 ) {
+            mNegotiated = true;
+
+            if( readBuffer.get( 0 ) == BinaryProtocol.MAGIC ) {
+                mBinary = true;
+                mBinaryReply = new BinaryReplyBuilder();
+                Metrics.increment( "protocol.binary.sessions" );
+
+                readBuffer.flip();
+                readBuffer.get();
+                readBuffer.compact();
+            }
+        }
+
+        if( mBinary ) {
+            if( readBuffer.position() > mRequestBB.remaining() )
+                growRequestBuffer( readBuffer );
+
+            readBuffer.flip();
+            mRequestBB.put( readBuffer );
+            readBuffer.compact();
+
+            return hasCompleteRequest();
+        }
+
+        // Read the new bytes into requestBB and check if complete message has been read
+        return ConnectionProtocol.copyReadBufferTo( readBuffer, mRequestBB );
+    }
+
+    private void growRequestBuffer( ByteBuffer readBuffer ) {
+        ByteBuffer temp = BufferPool.instance.acquire( Math.max( readBuffer.capacity(), mRequestBB.position() + readBuffer.position() ) );
+        mRequestBB.flip();
+        temp.put(mRequestBB);
+        BufferPool.instance.release(mRequestBB);
+        mRequestBB = temp;
+    }
+
+    /*
+     * Executes every complete request in request buffer, at most MAX_PIPELINED of them, and
+     * returns their replies in one buffer ready to be written to the channel. Partial request
+     * at the end of the buffer is kept for the next read. When busy is set requests are
+     * answered with busy reply without executing them.
+     */
+    ByteBuffer process( boolean busy ) throws IllegalArgumentException {
+        mRequestBB.flip();
+
+        ByteBuffer first = null;
+        int processed = 0;
+
+        try {
+            while( processed < MAX_PIPELINED ) {
+                int end = indexOfMessageEnd( mRequestBB.position(), mRequestBB.limit() );
+
+                if( end == -1 ) {
+                    // ConnectionProtocol said message is complete, but it has no terminator.
+                    // Handle the whole buffer as one request like before pipelining.
+                    if( mBinary || processed > 0 || !mRequestBB.hasRemaining() )
+                        break;
+
+                    end = mRequestBB.limit() - 1;
+                }
+
+                // Single reply is returned as is. Pipelined replies are collected to one buffer.
+                // First reply is moved there before the next request reuses its reply builder.
+                if( processed == 1 ) {
+                    BufferPool.instance.release( mReplyBB );
+                    mReplyBB = BufferPool.instance.acquire( first.remaining() * 2 );
+                    appendReply( first );
+                }
+
+                int limit = mRequestBB.limit();
+                mRequestBB.limit( end + 1 );
+
+                ByteBuffer reply;
+
+                try {
+                    reply = busy ? busy() : execute( mRequestBB );
+                } catch( RuntimeException | SQLException e ) {
+                    // Request is consumed anyway. Client gets error reply for it and the
+                    // requests after it are still executed.
+                    reply = failed( e );
+                } finally {
+                    mRequestBB.limit( limit );
+                    mRequestBB.position( end + 1 );
+                }
+
+                if( first == null )
+                    first = reply;
+                else
+                    appendReply( reply );
+
+                processed++;
+            }
+        } finally {
+            // Keep partial or not yet processed requests for the next round. Answered
+            // requests are gone even if framing of the next one was broken.
+            mRequestBB.compact();
+        }
+
+        Metrics.record( "requests.pipelined", processed );
+
+        if( processed > 1 ) {
+            mReplyBB.flip();
+            return mReplyBB;
+        }
+
+        return first;
+    }
+
+    private ByteBuffer failed( Exception e ) {
+        LOG.error( "Request failed", e );
+        Metrics.increment( "requests.failed" );
+
+        ReplyBuilder reply = newReply();
+        reply.mReplyCode = e instanceof SQLException ? Reply.ReplyCode.UNKNOWN_ERROR : Reply.ReplyCode.UNKNOWN_REQUEST_FORMAT;
+        return reply.toBuffer();
+    }
+
+    /*
+     * True when request buffer already holds complete request. Happens when client has
+     * pipelined more than MAX_PIPELINED requests.
+     */
+    boolean hasCompleteRequest() {
+        return mRequestBB != null && indexOfMessageEnd( 0, mRequestBB.position() ) != -1;
+    }
+
+    /*
+     * True when some of the received requests hashes a password. Those are executed on
+     * crypto stage instead of database stage.
+     */
+    boolean needsCrypto() {
+        int start = 0;
+        int end;
+
+        while( ( end = indexOfMessageEnd( start, mRequestBB.position() ) ) != -1 ) {
+            if( mBinary ) {
+                byte type = mRequestBB.get( typeIndex( start ) );
+
+                if( type == BinaryProtocol.LOGIN || type == BinaryProtocol.REGISTER )
+                    return true;
+            } else if( startsWith( start, end, LOGIN ) || startsWith( start, end, REGISTER ) ) {
+                return true;
+            }
+
+            start = end + 1;
+        }
+
+        // Request without terminator
+        return !mBinary && start == 0 && ( startsWith( 0, mRequestBB.position(), LOGIN ) || startsWith( 0, mRequestBB.position(), REGISTER ) );
+    }
+
+    private boolean startsWith( int start, int end, byte[] protocol ) {
+        if( end - start <= protocol.length )
+            return false;
+
+        for( int i = 0; i < protocol.length; i++ ) {
+            if( mRequestBB.get( start + i ) != protocol[ i ] )
+                return false;
+        }
+
+        // LOGIN must not match LOGIN_HASH
+        byte next = mRequestBB.get( start + protocol.length );
+        return next != '_' && !Character.isLetterOrDigit( next );
+    }
+
+    // Index of frame type byte, right after the length varint
+    private int typeIndex( int start ) {
+        while( mRequestBB.get( start ) < 0 )
+            start++;
+
+        return start + 1;
+    }
+
+    /*
+     * Index of the last byte of request starting at from, -1 if it is not complete yet.
+     */
+    private int indexOfMessageEnd( int from, int to ) {
+        if( mBinary )
+            return BinaryProtocol.frameEnd( mRequestBB, from, to );
+
+        for( int i = from; i < to; i++ ) {
+            if( mRequestBB.get( i ) == MESSAGE_END )
+                return i;
+        }
+
+        return -1;
+    }
+
+    /*
+     * Gives back request buffer if it holds no partial request and reply buffer once
+     * pipelined replies have been written.
+     */
+    void releaseBuffers() {
+        if( mRequestBB != null && mRequestBB.position() == 0 ) {
+            BufferPool.instance.release( mRequestBB );
+            mRequestBB = null;
+        }
+
+        if( mReplyBB != null && !mReplyBB.hasRemaining() ) {
+            BufferPool.instance.release( mReplyBB );
+            mReplyBB = null;
+        }
+
+        if( mBinaryReply != null )
+            mBinaryReply.releaseBuffer();
+    }
+
+    /*
+     * Frees resources that are not garbage collected and gives buffers back to pool, also
+     * the ones still holding data. Called when the session closes.
+     */
+    void close() {
+        BufferPool.instance.release( mRequestBB );
+        mRequestBB = null;
+
+        BufferPool.instance.release( mReplyBB );
+        mReplyBB = null;
+
+        if( mBinaryReply != null )
+            mBinaryReply.close();
+
+        if( mSubscribed ) {
+            SessionRegistry.instance.unsubscribe( mSubscribedUserID, mSubscriber );
+            mSubscribed = false;
+        }
+    }
+
+    private void appendReply( ByteBuffer reply ) {
+        if( mReplyBB.remaining() < reply.remaining() ) {
+            ByteBuffer temp = BufferPool.instance.acquire( Math.max( mReplyBB.capacity() * 2, mReplyBB.position() + reply.remaining() ) );
+            mReplyBB.flip();
+            temp.put( mReplyBB );
+            BufferPool.instance.release( mReplyBB );
+            mReplyBB = temp;
+        }
+
+        mReplyBB.put( reply );
+    }
+
+    private ByteBuffer busy() {
+        Metrics.increment( "admission.busyReplies" );
+
+        // Protocol has no dedicated busy code yet
+        ReplyBuilder reply = newReply();
+        reply.mReplyCode = Reply.ReplyCode.UNKNOWN_ERROR;
+
+        return reply.toBuffer();
+    }
+
+    private ByteBuffer malformed() {
+        ReplyBuilder reply = newReply();
+        reply.mReplyCode = Reply.ReplyCode.UNKNOWN_REQUEST_FORMAT;
+        return reply.toBuffer();
+    }
+
+    private ReplyBuilder newReply() {
+        return mBinary ? mBinaryReply.reset() : new TextReplyBuilder();
+    }
+
+    private ByteBuffer execute( ByteBuffer request ) throws IllegalArgumentException, SQLException {
+        if( mBinary )
+            return executeBinary( request );
+
+        mTokenizer.tokenize( request );
+        ConnectionProtocol.Protocols protocol = mTokenizer.getProtocol();
+
+        // Location updates are the most common request. They are decoded straight from
+        // request buffer without building Strings or Location object.
+        if( protocol == ConnectionProtocol.Protocols.LOCATION && mTokenizer.getFieldCount() == LOCATION_FIELDS )
+            return location( mTokenizer.getLong( 1 ), mTokenizer.getDouble( 2 ), mTokenizer.getDouble( 3 ),
+                    mTokenizer.getDouble( 4 ), mTokenizer.getLong( 5 ), 1 );
+
+        // Phone that was offline sends its fixes in one LOCATION with more field groups
+        if( protocol == ConnectionProtocol.Protocols.LOCATION && mTokenizer.getFieldCount() > LOCATION_FIELDS
+                && ( mTokenizer.getFieldCount() - 2 ) % FIX_FIELDS == 0 )
+            return locationBatch();
+
+        // Fetch request content
+        byte[] bytes = new byte[request.remaining()];
+        request.get( bytes );
+
+        String message = new String( bytes, StandardCharsets.UTF_8 );
+        String[] parts = message.split( ConnectionProtocol.MESSAGE_SPLIT_CHAR );
+
+        // Unknown protocol fails here like before
+        if( protocol == null )
+            protocol = ConnectionProtocol.Protocols.valueOf( parts[0] );
+
+        return execute( protocol, parts );
+    }
+
+    /*
+     * Decodes binary frame. LOCATION has fixed fields, other requests carry the fields of
+     * the text request and are executed the same way.
+     */
+    private ByteBuffer executeBinary( ByteBuffer frame ) throws SQLException {
+        // Length has already been checked by frameEnd
+        BinaryProtocol.getVarLong( frame );
+        byte type = frame.get();
+
+        // Field lengths and fixed layouts are checked against the frame before anything is
+        // read, client may send whatever it wants
+        if( type == BinaryProtocol.HELLO )
+            return frame.remaining() >= 2 ? hello( frame ) : malformed();
+
+        if( type == BinaryProtocol.LOCATION ) {
+            if( !BinaryProtocol.hasVarLong( frame ) )
+                return malformed();
+
+            long userID = BinaryProtocol.getVarLong( frame );
+
+            if( frame.remaining() != BINARY_FIX_BYTES )
+                return malformed();
+
+            return location( userID, frame.getDouble(), frame.getDouble(), frame.getDouble(), frame.getLong(), 1 );
+        }
+
+        if( type == BinaryProtocol.LOCATION_BATCH )
+            return locationBatch( frame );
+
+        if( type == BinaryProtocol.SUBSCRIBE )
+            return subscribe( !frame.hasRemaining() || frame.get() != 0 );
+
+        if( type == BinaryProtocol.CIRCLE_DATA && frame.hasRemaining() ) {
+            if( !BinaryProtocol.hasVarLong( frame ) )
+                return malformed();
+
+            long version = BinaryProtocol.getVarLong( frame );
+            return frame.hasRemaining() ? malformed() : circleData( version );
+        }
+
+        ConnectionProtocol.Protocols protocol = BinaryProtocol.getProtocol( type );
+
+        if( protocol == null )
+            return malformed();
+
+        ArrayList<String> parts = new ArrayList<>();
+        parts.add( protocol.name() );
+
+        while( frame.hasRemaining() ) {
+            if( !BinaryProtocol.hasVarLong( frame ) )
+                return malformed();
+
+            long length = BinaryProtocol.getVarLong( frame );
+
+            if( length < 0 || length > frame.remaining() )
+                return malformed();
+
+            byte[] field = new byte[ (int)length ];
+            frame.get( field );
+            parts.add( new String( field, StandardCharsets.UTF_8 ) );
+        }
+
+        return execute( protocol, parts.toArray( new String[ parts.size() ] ) );
+    }
+
+    /*
+     * Answers with server's version and the flags of client that server supports.
+     */
+    private ByteBuffer hello( ByteBuffer frame ) {
+        // Client version is not needed while there is only one
+        frame.get();
+        int flags = frame.get() & SUPPORTED_FLAGS;
+
+        if( ( flags & BinaryProtocol.FLAG_DEFLATE ) != 0 )
+            mBinaryReply.enableCompression();
+
+        return ByteBuffer.wrap( new byte[]{ 3, BinaryProtocol.HELLO, BinaryProtocol.VERSION, (byte)flags } );
+    }
+
+    private ByteBuffer execute( ConnectionProtocol.Protocols protocol, String[] parts ) throws SQLException {
+        ReplyBuilder reply = newReply();
+
+        Sendable sendable = PacketParser.build( protocol, parts );
+
+        LOG.debug( () -> "ID: " + mUserID + " | " + String.join( " | ", parts ) );
+
+        DAO dao = new DAO();
+        dao.init();
+
+        try {
+            execute( protocol, sendable, dao, reply );
+        } finally {
+            // Release connection back to connection pool
+            dao.close();
+        }
+
+        return reply.toBuffer();
+    }
+
+    private void execute( ConnectionProtocol.Protocols protocol, Sendable sendable, DAO dao, ReplyBuilder reply ) throws SQLException {
+        Login login;
+        User user;
+        CircleMember circleMember;
+
+        switch( protocol ){
+            case EMAIL_TAKEN:
+                boolean taken = dao.emailTaken( (Login)sendable );
+                reply.mReplyCode = Reply.ReplyCode.EMAIL_TAKEN;
+                reply.addMessage( new byte[]{(byte)(taken ? 1 : 0)} );
+                break;
+            case LOGIN:
+                login = (Login)sendable;
+                user = dao.getUser( login );
+                if(user == null){
+                    reply.mReplyCode = Reply.ReplyCode.CREDENTIAL_ERROR_EMAIL;
+                } else if( Authentication.verify( login.mPassword, user.mIterations, user.mSalt, user.mHash )){
+                    reply.mReplyCode = Reply.ReplyCode.LOGIN_SUCCESSFUL;
+
+                    reply.addMessage( Utility.longToByteArray( user.mID ) );
+                    reply.addMessage( user.mFirstName.getBytes( StandardCharsets.UTF_8 ) );
+                    reply.addMessage( user.mLastName.getBytes( StandardCharsets.UTF_8 ) );
+                    reply.addMessage( user.mEmail.getBytes( StandardCharsets.UTF_8 ) );
+                    reply.addMessage( Utility.passwordEncode( user.mHash ).getBytes( StandardCharsets.UTF_8 ) );
+
+                    mUserID = user.mID;
+                    mIsLoggedIn = true;
+                } else {
+                    reply.mReplyCode = Reply.ReplyCode.CREDENTIAL_ERROR_PASSWORD;
+                }
+                break;
+            case LOGIN_HASH:
+                login = (Login)sendable;
+                user = dao.getUser( login );
+                if(user == null){
+                    reply.mReplyCode = Reply.ReplyCode.CREDENTIAL_ERROR_EMAIL;
+                } else if( Authentication.verify( login.mHash, user.mHash )){
+                    reply.mReplyCode = Reply.ReplyCode.LOGIN_SUCCESSFUL;
+
+                    reply.addMessage( Utility.longToByteArray( user.mID ) );
+                    reply.addMessage( user.mFirstName.getBytes( StandardCharsets.UTF_8 ) );
+                    reply.addMessage( user.mLastName.getBytes( StandardCharsets.UTF_8 ) );
+
+                    mUserID = user.mID;
+                    mIsLoggedIn = true;
+                } else {
+                    LOG.log( Log.Level.DEBUG, "LOGIN_HASH did not match for ID: " + user.mID, null );
+                    reply.mReplyCode = Reply.ReplyCode.CREDENTIAL_ERROR_PASSWORD;
+                }
+                break;
+            case REGISTER:
+                Register register = (Register)sendable;
+                switch( dao.register( register ) ){
+                    case 0:
+                        user = dao.getUser( register );
+
+                        reply.mReplyCode = Reply.ReplyCode.REGISTERATION_SUCCESSFUL;
+
+                        reply.addMessage( Utility.longToByteArray( user.mID ) );
+                        reply.addMessage( user.mFirstName.getBytes( StandardCharsets.UTF_8 ) );
+                        reply.addMessage( user.mLastName.getBytes( StandardCharsets.UTF_8 ) );
+                        reply.addMessage( user.mEmail.getBytes( StandardCharsets.UTF_8 ) );
+                        reply.addMessage( Utility.passwordEncode( user.mHash ).getBytes( StandardCharsets.UTF_8 ) );
+
+                        mUserID = user.mID;
+                        mIsLoggedIn = true;
+                        break;
+                    case 23505:
+                        reply.mReplyCode = Reply.ReplyCode.EMAIL_TAKEN;
+                        break;
+                    default:
+                        reply.mReplyCode = Reply.ReplyCode.UNKNOWN_ERROR;
+                }
+                break;
+            case LOCATION:
+                if(!mIsLoggedIn){
+                    // This should not happen, but in case it does
+                    reply.mReplyCode = Reply.ReplyCode.NOT_LOGGED_IN;
+                } else {
+                    Location location = (Location)sendable;
+
+                    if(location.mUserID != mUserID){
+                        reply.mReplyCode = Reply.ReplyCode.WRONG_USER_ID;
+                        break;
+                    }
+
+                    switch( dao.addLocation( location ) ){
+                        case 0:
+                            reply.mReplyCode = Reply.ReplyCode.LOCATION_TRANSFER_SUCCESS;
+                            break;
+                        default:
+                            reply.mReplyCode = Reply.ReplyCode.UNKNOWN_ERROR;
+
+                    }
+                }
+
+                break;
+            case CREATE_CIRCLE:
+                if(!mIsLoggedIn){
+                    // This should not happen, but in case it does
+                    reply.mReplyCode = Reply.ReplyCode.NOT_LOGGED_IN;
+                } else {
+                    long group_id = dao.createCircle( (Circle)sendable, mUserID );
+                    if( group_id != -1 ) {
+                        reply.mReplyCode = Reply.ReplyCode.CIRCLE_CREATE_SUCCESSFUL;
+                        reply.addMessage( Utility.longToByteArray( group_id ) );
+                    } else {
+                        reply.mReplyCode = Reply.ReplyCode.UNKNOWN_ERROR;
+                    }
+                }
+                break;
+            case JOIN_REQUESTS:
+                if(!mIsLoggedIn){
+                    // This should not happen, but in case it does
+                    reply.mReplyCode = Reply.ReplyCode.NOT_LOGGED_IN;
+                } else {
+                    reply.mReplyCode = Reply.ReplyCode.JOIN_REQUEST_SUCCESSFUL;
+                    ArrayList<Circle> circles = dao.getJoinRequests( mUserID );
+
+                    for(Circle circle : circles)
+                        reply.addMessage( (circle.mID + "," + circle.mName).getBytes( StandardCharsets.UTF_8 ) );
+                }
+                break;
+            case CONFIRM_JOIN_REQUEST:
+                switch( dao.confirmCircle( (Circle)sendable, mUserID, reply ) ){
+                    case 0:
+                        reply.mReplyCode = Reply.ReplyCode.JOIN_REQUEST_CONFIRMED_SUCCESSFULLY;
+                        break;
+                    default:
+                        // Part of the members may have been written
+                        reply.clear();
+                        reply.mReplyCode = Reply.ReplyCode.JOIN_REQUEST_ERROR;
+                }
+                break;
+            case DECLINE_JOIN_REQUEST:
+                switch( dao.declineCircle( (Circle)sendable, mUserID ) ){
+                    case 0:
+                        reply.mReplyCode = Reply.ReplyCode.JOIN_REQUEST_DECLINED_SUCCESSFULLY;
+                        break;
+                    default:
+                        reply.mReplyCode = Reply.ReplyCode.JOIN_REQUEST_ERROR;
+                }
+                break;
+            case ADD_CIRCLE_MEMBER:
+                switch( dao.addCircleMember( (CircleMember)sendable, mUserID ) ){
+                    case 0:
+                        reply.mReplyCode = Reply.ReplyCode.ADD_FRIEND_SUCCESSFUL;
+                        break;
+                    case -1:
+                        reply.mReplyCode = Reply.ReplyCode.NOT_PART_OF_CIRCLE;
+                        break;
+                    case -2:
+                        reply.mReplyCode = Reply.ReplyCode.FRIEND_NOT_FOUND;
+                        break;
+                    default:
+                        reply.mReplyCode = Reply.ReplyCode.UNKNOWN_ERROR;
+                }
+                break;
+            case REMOVE_CIRCLE_MEMBER:
+                circleMember = (CircleMember)sendable;
+                switch( dao.removeCircleMember( circleMember, mUserID ) ){
+                    case 0:
+                        reply.mReplyCode = Reply.ReplyCode.REMOVE_FRIEND_SUCCESSFUL;
+                        break;
+                    default:
+                        reply.mReplyCode = Reply.ReplyCode.UNKNOWN_ERROR;
+                }
+                break;
+            case DELETE_CIRCLE:
+                switch( dao.deleteCircle( (Circle)sendable, mUserID ) ){
+                    case 0:
+                        reply.mReplyCode = Reply.ReplyCode.CIRCLE_DELETE_SUCCESSFUL;
+                        break;
+                    default:
+                        reply.mReplyCode = Reply.ReplyCode.UNKNOWN_ERROR;
+                }
+                break;
+            case CIRCLE_DATA:
+                switch( dao.getCircleData( mUserID, reply ) ){
+                    case 0:
+                        reply.mReplyCode = Reply.ReplyCode.DATA_REQUEST_SUCCESSFUL;
+                        break;
+                    default:
+                        reply.clear();
+                        reply.mReplyCode = Reply.ReplyCode.DATA_REQUEST_ERROR;
+                }
+                break;
+            default:
+                reply.mReplyCode = Reply.ReplyCode.UNKNOWN_REQUEST_FORMAT;
+        }
+    }
+
+    /*
+     * Starts or stops pushing location updates of friends to this session.
+     */
+    private ByteBuffer subscribe( boolean subscribe ) {
+        ReplyBuilder reply = newReply();
+
+        if(!mIsLoggedIn){
+            reply.mReplyCode = Reply.ReplyCode.NOT_LOGGED_IN;
+        } else if( mSubscriber == null ){
+            // Thread per session mode can't write outside of replies
+            reply.mReplyCode = Reply.ReplyCode.UNKNOWN_REQUEST_FORMAT;
+        } else {
+            if( mSubscribed )
+                SessionRegistry.instance.unsubscribe( mSubscribedUserID, mSubscriber );
+
+            if( subscribe )
+                SessionRegistry.instance.subscribe( mUserID, mSubscriber );
+
+            mSubscribed = subscribe;
+            mSubscribedUserID = mUserID;
+
+            reply.mReplyCode = Reply.ReplyCode.DATA_REQUEST_SUCCESSFUL;
+        }
+
+        return reply.toBuffer();
+    }
+
+    /*
+     * CIRCLE_DATA with only the changes after version client already has.
+     */
+    private ByteBuffer circleData( long version ) throws SQLException {
+        ReplyBuilder reply = newReply();
+
+        if(!mIsLoggedIn){
+            // This should not happen, but in case it does
+            reply.mReplyCode = Reply.ReplyCode.NOT_LOGGED_IN;
+        } else {
+            DAO dao = new DAO();
+            dao.init();
+
+            int result;
+
+            try {
+                result = dao.getCircleData( mUserID, version, reply );
+            } finally {
+                // Release connection back to connection pool
+                dao.close();
+            }
+
+            if( result == 0 ) {
+                reply.mReplyCode = Reply.ReplyCode.DATA_REQUEST_SUCCESSFUL;
+            } else {
+                reply.clear();
+                reply.mReplyCode = Reply.ReplyCode.DATA_REQUEST_ERROR;
+            }
+        }
+
+        return reply.toBuffer();
+    }
+
+    /*
+     * Table holds only the current location, so only the newest fix of the batch is stored.
+     */
+    private ByteBuffer locationBatch() throws SQLException {
+        int fields = mTokenizer.getFieldCount();
+        int newest = 2;
+
+        for( int i = newest + FIX_FIELDS; i < fields; i += FIX_FIELDS ) {
+            if( mTokenizer.getLong( i + 3 ) > mTokenizer.getLong( newest + 3 ) )
+                newest = i;
+        }
+
+        return location( mTokenizer.getLong( 1 ), mTokenizer.getDouble( newest ), mTokenizer.getDouble( newest + 1 ),
+                mTokenizer.getDouble( newest + 2 ), mTokenizer.getLong( newest + 3 ), ( fields - 2 ) / FIX_FIELDS );
+    }
+
+    private ByteBuffer locationBatch( ByteBuffer frame ) throws SQLException {
+        if( !BinaryProtocol.hasVarLong( frame ) )
+            return malformed();
+
+        long userID = BinaryProtocol.getVarLong( frame );
+
+        if( !BinaryProtocol.hasVarLong( frame ) )
+            return malformed();
+
+        long count = BinaryProtocol.getVarLong( frame );
+
+        // Count is compared by division so that huge count can't overflow
+        if( count < 1 || frame.remaining() % BINARY_FIX_BYTES != 0 || frame.remaining() / BINARY_FIX_BYTES != count )
+            return malformed();
+
+        int newest = frame.position();
+
+        for( int fix = newest + BINARY_FIX_BYTES; fix < frame.limit(); fix += BINARY_FIX_BYTES ) {
+            if( frame.getLong( fix + 24 ) > frame.getLong( newest + 24 ) )
+                newest = fix;
+        }
+
+        return location( userID, frame.getDouble( newest ), frame.getDouble( newest + 8 ),
+                frame.getDouble( newest + 16 ), frame.getLong( newest + 24 ), (int)count );
+    }
+
+    /*
+     * LOCATION fields are user id, latitude, longitude, accuracy and time recorded, in the
+     * same order PacketParser.build reads them. When location is the newest of batch,
+     * location stored earlier is kept if it is newer still.
+     */
+    private ByteBuffer location( long userID, double latitude, double longitude, double accuracy, long timeRecorded, int fixes ) throws SQLException {
+        ReplyBuilder reply = newReply();
+
+        LOG.debug( () -> "ID: " + mUserID + " | LOCATION" );
+
+        if(!mIsLoggedIn){
+            // This should not happen, but in case it does
+            reply.mReplyCode = Reply.ReplyCode.NOT_LOGGED_IN;
+        } else if(userID != mUserID){
+            reply.mReplyCode = Reply.ReplyCode.WRONG_USER_ID;
+        } else {
+            // Location is acknowledged once LocationStore has it. Database is needed only
+            // when the store is full or there are friends to push to.
+            boolean onlyNewer = fixes > 1;
+            boolean stored = LocationStore.instance.put( mUserID, latitude, longitude, accuracy, timeRecorded, onlyNewer );
+            boolean push = SessionRegistry.instance.hasSubscribers();
+            int result = 0;
+
+            if( !stored || push ) {
+                DAO dao = new DAO();
+                dao.init();
+
+                try {
+                    if( !stored )
+                        result = dao.addLocation( mUserID, latitude, longitude, accuracy, timeRecorded, onlyNewer );
+
+                    if( result == 0 )
+                        LocationTable.instance.put( mUserID, latitude, longitude, accuracy, timeRecorded, onlyNewer );
+
+                    // Friends that are subscribed see the new location without polling. Fix of
+                    // batch older than the stored location didn't replace it and is not pushed,
+                    // friends would see the user jump back.
+                    if( result == 0 && push && ( !onlyNewer || isCurrent( dao, timeRecorded ) ) )
+                        SessionRegistry.instance.publish( dao.getLocationReceivers( mUserID ),
+                                locationPush( mUserID, latitude, longitude, accuracy, timeRecorded ) );
+                } finally {
+                    // Release connection back to connection pool
+                    dao.close();
+                }
+            } else {
+                LocationTable.instance.put( mUserID, latitude, longitude, accuracy, timeRecorded, onlyNewer );
+            }
+
+            if( fixes > 1 )
+                Metrics.record( "location.batch.fixes", fixes );
+
+            reply.mReplyCode = result == 0 ? Reply.ReplyCode.LOCATION_TRANSFER_SUCCESS : Reply.ReplyCode.UNKNOWN_ERROR;
+        }
+
+        return reply.toBuffer();
+    }
+
+    /*
+     * True when location recorded at timeRecorded is the newest one of the user. Called after
+     * the location has been stored, so the newest one is at least as new.
+     */
+    private boolean isCurrent( DAO dao, long timeRecorded ) {
+        if( LocationTable.instance.isReady() )
+            return LocationTable.instance.getTime( mUserID ) <= timeRecorded;
+
+        LocationStore.Fix pending = LocationStore.instance.getPending( mUserID );
+
+        if( pending != null && pending.mTimeRecorded > timeRecorded )
+            return false;
+
+        return dao.getLocationTime( mUserID ) <= timeRecorded;
+    }
+
+    private static ByteBuffer locationPush( long userID, double latitude, double longitude, double accuracy, long timeRecorded ) {
+        int length = 1 + BinaryProtocol.varLongSize( userID ) + BINARY_FIX_BYTES;
+
+        ByteBuffer push = ByteBuffer.allocate( 1 + length );
+        push.put( (byte)length );
+        push.put( BinaryProtocol.PUSH_LOCATION );
+        BinaryProtocol.putVarLong( push, userID );
+        push.putDouble( latitude );
+        push.putDouble( longitude );
+        push.putDouble( accuracy );
+        push.putLong( timeRecorded );
+        push.flip();
+
+        return push;
+    }
+}
@@ -0,0 +1,257 @@
+package fi.joni.lehtinen;
+
+import fi.joni.lehtinen.friendfinder.connectionprotocol.ConnectionProtocol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/*
+ * Splits text request to fields by scanning the request buffer in place. Field boundaries
+ * are kept as offsets so numbers can be decoded without creating Strings.
+ *
+ * One tokenizer is reused for every request of a session. It doesn't move request
+ * buffer's position.
+ */
+public class RequestTokenizer {
+
+    private static final byte SPLIT_CHAR = splitChar();
+    private static final ConnectionProtocol.Protocols[] PROTOCOL_TABLE = new ConnectionProtocol.Protocols[ 64 ];
+    private static final byte[][] PROTOCOL_NAMES = new byte[ PROTOCOL_TABLE.length ][];
+
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    static {
+        // Open addressing table from protocol name bytes to protocol
+        for( ConnectionProtocol.Protocols protocol : ConnectionProtocol.Protocols.values() ) {
+            byte[] name = protocol.name().getBytes( StandardCharsets.US_ASCII );
+            int index = hash( name, 0, name.length );
+
+            while( PROTOCOL_TABLE[ index ] != null )
+                index = ( index + 1 ) & ( PROTOCOL_TABLE.length - 1 );
+
+            PROTOCOL_TABLE[ index ] = protocol;
+            PROTOCOL_NAMES[ index ] = name;
+        }
+    }
+
+    private ByteBuffer mRequest;
+    private int[] mStarts = new int[ 16 ];
+    private int[] mEnds = new int[ 16 ];
+    private int mFieldCount;
+
+    /*
+     * MESSAGE_SPLIT_CHAR is given to String.split so it may be regex escaped.
+     */
+    private static byte splitChar() {
+        String split = ConnectionProtocol.MESSAGE_SPLIT_CHAR;
+        return (byte)( split.length() == 2 && split.charAt( 0 ) == '\\' ? split.charAt( 1 ) : split.charAt( 0 ) );
+    }
+
+    private static int hash( byte[] bytes, int start, int end ) {
+        int hash = end - start;
+        for( int i = start; i < end; i++ )
+            hash = hash * 31 + bytes[ i ];
+
+        return ( hash ^ ( hash >>> 7 ) ) & ( PROTOCOL_TABLE.length - 1 );
+    }
+
+    public void tokenize( ByteBuffer request ) {
+        mRequest = request;
+        mFieldCount = 0;
+
+        int start = request.position();
+        int end = request.limit();
+
+        // Message terminator is not part of the last field
+        while( end > start && ( request.get( end - 1 ) == '\n' || request.get( end - 1 ) == '\r' ) )
+            end--;
+
+        for( int i = start; i <= end; i++ ) {
+            if( i == end || request.get( i ) == SPLIT_CHAR ) {
+                addField( start, i );
+                start = i + 1;
+            }
+        }
+    }
+
+    private void addField( int start, int end ) {
+        if( mFieldCount == mStarts.length ) {
+            int[] starts = new int[ mStarts.length * 2 ];
+            int[] ends = new int[ mEnds.length * 2 ];
+            System.arraycopy( mStarts, 0, starts, 0, mFieldCount );
+            System.arraycopy( mEnds, 0, ends, 0, mFieldCount );
+            mStarts = starts;
+            mEnds = ends;
+        }
+
+        mStarts[ mFieldCount ] = start;
+        mEnds[ mFieldCount ] = end;
+        mFieldCount++;
+    }
+
+    public int getFieldCount() {
+        return mFieldCount;
+    }
+
+    /*
+     * Returns protocol named by the first field or null if there is no such protocol.
+     */
+    public ConnectionProtocol.Protocols getProtocol() {
+        if( mFieldCount == 0 )
+            return null;
+
+        int start = mStarts[ 0 ];
+        int end = mEnds[ 0 ];
+
+        int hash = end - start;
+        for( int i = start; i < end; i++ )
+            hash = hash * 31 + mRequest.get( i );
+
+        int index = ( hash ^ ( hash >>> 7 ) ) & ( PROTOCOL_TABLE.length - 1 );
+
+        while( PROTOCOL_TABLE[ index ] != null ) {
+            if( equals( PROTOCOL_NAMES[ index ], start, end ) )
+                return PROTOCOL_TABLE[ index ];
+
+            index = ( index + 1 ) & ( PROTOCOL_TABLE.length - 1 );
+        }
+
+        return null;
+    }
+
+    private boolean equals( byte[] name, int start, int end ) {
+        if( name.length != end - start )
+            return false;
+
+        for( int i = 0; i < name.length; i++ ) {
+            if( name[ i ] != mRequest.get( start + i ) )
+                return false;
+        }
+
+        return true;
+    }
+
+    public long getLong( int field ) {
+        int i = mStarts[ field ];
+        int end = mEnds[ field ];
+
+        boolean negative = i < end && mRequest.get( i ) == '-';
+        if( negative || ( i < end && mRequest.get( i ) == '+' ) )
+            i++;
+
+        if( i == end )
+            throw new NumberFormatException( "Empty number in field " + field );
+
+        long value = 0;
+        for( ; i < end; i++ ) {
+            int digit = mRequest.get( i ) - '0';
+
+            if( digit < 0 || digit > 9 )
+                throw new NumberFormatException( "Invalid number in field " + field );
+
+            value = value * 10 + digit;
+        }
+
+        return negative ? -value : value;
+    }
+
+    /*
+     * Decodes decimal or scientific notation. Up to 15 significant digits the result is exact.
+     * Longer mantissas can differ from Double.parseDouble in the last bit, far below any
+     * location accuracy. Anything unusual, like NaN, goes through Double.parseDouble.
+     */
+    public double getDouble( int field ) {
+        int i = mStarts[ field ];
+        int end = mEnds[ field ];
+
+        boolean negative = i < end && mRequest.get( i ) == '-';
+        if( negative || ( i < end && mRequest.get( i ) == '+' ) )
+            i++;
+
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean dot = false;
+        boolean any = false;
+
+        for( ; i < end; i++ ) {
+            byte b = mRequest.get( i );
+
+            if( b >= '0' && b <= '9' ) {
+                any = true;
+
+                if( digits < 18 ) {
+                    mantissa = mantissa * 10 + ( b - '0' );
+
+                    // Leading zeros are not significant
+                    if( mantissa != 0 )
+                        digits++;
+
+                    if( dot )
+                        exponent--;
+                } else if( !dot ) {
+                    exponent++;
+                }
+            } else if( b == '.' && !dot ) {
+                dot = true;
+            } else if( ( b == 'e' || b == 'E' ) && any ) {
+                exponent += parseExponent( i + 1, end, field );
+                i = end;
+                break;
+            } else {
+                return getDoubleSlow( field );
+            }
+        }
+
+        if( !any )
+            return getDoubleSlow( field );
+
+        double value;
+
+        if( exponent == 0 ) {
+            value = mantissa;
+        } else if( exponent > 0 && exponent < POWERS_OF_TEN.length ) {
+            value = mantissa * POWERS_OF_TEN[ exponent ];
+        } else if( exponent < 0 && -exponent < POWERS_OF_TEN.length ) {
+            value = mantissa / POWERS_OF_TEN[ -exponent ];
+        } else {
+            return getDoubleSlow( field );
+        }
+
+        return negative ? -value : value;
+    }
+
+    private int parseExponent( int i, int end, int field ) {
+        boolean negative = i < end && mRequest.get( i ) == '-';
+        if( negative || ( i < end && mRequest.get( i ) == '+' ) )
+            i++;
+
+        int exponent = 0;
+        for( ; i < end; i++ ) {
+            int digit = mRequest.get( i ) - '0';
+
+            if( digit < 0 || digit > 9 || exponent > 1000 )
+                throw new NumberFormatException( "Invalid exponent in field " + field );
+
+            exponent = exponent * 10 + digit;
+        }
+
+        return negative ? -exponent : exponent;
+    }
+
+    private double getDoubleSlow( int field ) {
+        return Double.parseDouble( getString( field ) );
+    }
+
+    public String getString( int field ) {
+        byte[] bytes = new byte[ mEnds[ field ] - mStarts[ field ] ];
+
+        for( int i = 0; i < bytes.length; i++ )
+            bytes[ i ] = mRequest.get( mStarts[ field ] + i );
+
+        return new String( bytes, StandardCharsets.UTF_8 );
+    }
+}
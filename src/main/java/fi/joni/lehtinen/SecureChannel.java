@@ -6,15 +6,21 @@ import javax.net.ssl.SSLEngineResult;
 import javax.net.ssl.SSLEngineResult.*;
 import javax.net.ssl.SSLException;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
+import java.util.function.IntConsumer;
 
 public class SecureChannel {
 
     private static final ByteBuffer EMPTY_BB = ByteBuffer.allocate(0);
+    private static final ThreadMXBean THREAD_MX_BEAN = ManagementFactory.getThreadMXBean();
+    private static final int WRITE_BATCH = Configuration.instance.getInt( "tls.writeBatch", 8 );
 
     private SocketChannel mSocketChannel;
+    private SSLContext mSSLContext;
     private SSLEngine mSSLEngine = null;
 
     private ByteBuffer mInAppBB;
@@ -22,18 +28,40 @@ public class SecureChannel {
     private ByteBuffer mInNetBB;
     private ByteBuffer mOutNetBB;
 
+    // Outbound application data records. Slots from mOutBatchOffset to mOutBatchCount
+    // are still waiting for the socket.
+    private ByteBuffer[] mOutBatch = new ByteBuffer[ WRITE_BATCH ];
+    private int mOutBatchCount = 0;
+    private int mOutBatchOffset = 0;
+    private int mWriteCalls = 0;
+
     private int mAppBBSize;
     private int mNetBBSize;
 
     private SSLEngineResult.HandshakeStatus mInitialHSStatus;
     private boolean mInitialHSComplete;
     private boolean mShutdown = false;
+    private boolean mDelegateTasks = false;
+    private boolean mNeedsTasks = false;
+    private long mHandshakeStarted;
 
     SecureChannel( SocketChannel socketChannel, SSLContext sslContext) throws IOException {
+        this( socketChannel, sslContext, false );
+    }
+
+    SecureChannel( SocketChannel socketChannel, SSLContext sslContext, boolean blocking) throws IOException {
         mSocketChannel = socketChannel;
-        mSocketChannel.configureBlocking( false );
+        mSocketChannel.configureBlocking( blocking );
+        mSSLContext = sslContext;
+    }
 
-        mSSLEngine = sslContext.createSSLEngine();
+    /*
+     * SSLEngine and its buffers are created on first handshake step instead of constructor
+     * so that Acceptor doesn't pay for them.
+     */
+    private void createSSLEngine() {
+        mHandshakeStarted = System.currentTimeMillis();
+        mSSLEngine = mSSLContext.createSSLEngine();
         mSSLEngine.setUseClientMode(false);
         mInitialHSStatus = HandshakeStatus.NEED_UNWRAP;
         mInitialHSComplete = false;
@@ -41,26 +69,74 @@ public class SecureChannel {
 
         mAppBBSize = mSSLEngine.getSession().getApplicationBufferSize();
         mNetBBSize = mSSLEngine.getSession().getPacketBufferSize();
+    }
+
+    /*
+     * Buffers are borrowed from BufferPool only when channel does I/O and given back
+     * by releaseBuffers when they are empty.
+     */
+    private void acquireBuffers() {
+        if (mInAppBB == null) {
+            mInAppBB = BufferPool.instance.acquire( mAppBBSize );
+        }
+
+        if (mInNetBB == null) {
+            mInNetBB = BufferPool.instance.acquire( mNetBBSize );
+        }
 
-        mInAppBB = ByteBuffer.allocate( mAppBBSize );
-        mInNetBB = ByteBuffer.allocate( mNetBBSize );
-        mOutNetBB = ByteBuffer.allocate( mNetBBSize );
+        if (mOutNetBB == null) {
+            mOutNetBB = BufferPool.instance.acquire( mNetBBSize );
+            mOutNetBB.limit(0);
+        }
+    }
 
-        mOutNetBB.position(0);
-        mOutNetBB.limit(0);
+    /*
+     * Gives back buffers holding no data. Called when session goes idle.
+     */
+    void releaseBuffers() {
+        if (mInAppBB != null && mInAppBB.position() == 0) {
+            BufferPool.instance.release( mInAppBB );
+            mInAppBB = null;
+        }
+
+        if (mInNetBB != null && mInNetBB.position() == 0) {
+            BufferPool.instance.release( mInNetBB );
+            mInNetBB = null;
+        }
+
+        if (mOutNetBB != null && !mOutNetBB.hasRemaining()) {
+            BufferPool.instance.release( mOutNetBB );
+            mOutNetBB = null;
+        }
+
+        if (mOutBatchOffset >= mOutBatchCount) {
+            releaseBatch();
+        }
+    }
+
+    private void releaseBatch() {
+        for (int i = 0; i < mOutBatch.length; i++) {
+            BufferPool.instance.release( mOutBatch[i] );
+            mOutBatch[i] = null;
+        }
+
+        mOutBatchCount = 0;
+        mOutBatchOffset = 0;
     }
 
     private boolean tryFlush(ByteBuffer source) throws IOException {
         mSocketChannel.write(source);
+        mWriteCalls++;
         return !source.hasRemaining();
     }
 
     private void resizeRequestBB() {
         if (mInAppBB.remaining() < mAppBBSize ) {
             // Expand buffer for large request
-            ByteBuffer bb = ByteBuffer.allocate(mInAppBB.capacity() * 2);
+            ByteBuffer bb = BufferPool.instance.acquire(mInAppBB.capacity() * 2);
             mInAppBB.flip();
             bb.put(mInAppBB);
+            BufferPool.instance.release(mInAppBB);
             mInAppBB = bb;
         }
     }
@@ -69,17 +145,35 @@ public class SecureChannel {
      * Adjust the inbount network buffer to an appropriate size.
      */
     private void resizeResponseBB() {
-        ByteBuffer bb = ByteBuffer.allocate( mNetBBSize );
+        ByteBuffer bb = BufferPool.instance.acquire( mNetBBSize );
         mInNetBB.flip();
         bb.put(mInNetBB);
+        BufferPool.instance.release(mInNetBB);
         mInNetBB = bb;
     }
 
+    /*
+     * Resumed session was created by an earlier handshake. Full handshake creates new session.
+     */
+    private void handshakeFinished() {
+        mInitialHSComplete = true;
+
+        if (mSSLEngine.getSession().getCreationTime() < mHandshakeStarted) {
+            Metrics.increment("tls.handshake.resumed");
+        } else {
+            Metrics.increment("tls.handshake.full");
+        }
+    }
+
+    SocketChannel getSocketChannel(){
+        return mSocketChannel;
+    }
+
     ByteBuffer getReadBuffer(){
         return mInAppBB;
     }
 
-    boolean doHandshake(SelectionKey selectionKey) throws IOException {
+    boolean doHandshake(IntConsumer interestOps) throws IOException {
 
         SSLEngineResult result;
 
@@ -87,13 +181,19 @@ public class SecureChannel {
             return mInitialHSComplete;
         }
 
+        if (mSSLEngine == null) {
+            createSSLEngine();
+        }
+
+        acquireBuffers();
+
         // Flush outgoing buffer. Message wrap happened earlier execution of
         // this method in different thread
         if (mOutNetBB.hasRemaining()) {
 
             if (!tryFlush(mOutNetBB)) {
                 // If flush was unsuccessful register for write
-                selectionKey.interestOps(SelectionKey.OP_WRITE);
+                interestOps.accept(SelectionKey.OP_WRITE);
                 return false;
             }
 
@@ -102,14 +202,14 @@ public class SecureChannel {
             switch (mInitialHSStatus) {
 
                 case FINISHED:
-                    mInitialHSComplete = true;
+                    handshakeFinished();
                     // Fall-through to reregister need for a Read.
 
                 case NEED_UNWRAP:
-                    selectionKey.interestOps(SelectionKey.OP_READ);
+                    interestOps.accept(SelectionKey.OP_READ);
                     break;
                 case NEED_WRAP:
-                    selectionKey.interestOps(SelectionKey.OP_WRITE);
+                    interestOps.accept(SelectionKey.OP_WRITE);
                     break;
                 // NOT_HANDSHAKING or NEED_TASK can't happen here
             }
@@ -144,11 +244,17 @@ public class SecureChannel {
                                             "Not handshaking during initial handshake");
 
                                 case NEED_TASK:
+                                    if (mDelegateTasks) {
+                                        // Caller runs the tasks elsewhere and calls again
+                                        mNeedsTasks = true;
+                                        interestOps.accept(0);
+                                        return mInitialHSComplete;
+                                    }
                                     mInitialHSStatus = doSLLEngineTasks();
                                     break;
 
                                 case FINISHED:
-                                    mInitialHSComplete = true;
+                                    handshakeFinished();
                                     break needIO;
                             }
 
@@ -176,7 +282,7 @@ public class SecureChannel {
 
                 // Check if we still need to read otherwise transition to write
                 if (mInitialHSStatus != HandshakeStatus.NEED_WRAP) {
-                    selectionKey.interestOps(SelectionKey.OP_READ);
+                    interestOps.accept(SelectionKey.OP_READ);
                     break;
                 }
 
@@ -194,10 +300,16 @@ public class SecureChannel {
                     case OK:
 
                         if (mInitialHSStatus == HandshakeStatus.NEED_TASK) {
+                            if (mDelegateTasks) {
+                                // Wrapped bytes are flushed when caller calls again after the tasks
+                                mNeedsTasks = true;
+                                interestOps.accept(0);
+                                break;
+                            }
                             mInitialHSStatus = doSLLEngineTasks();
                         }
 
-                        selectionKey.interestOps(SelectionKey.OP_WRITE);
+                        interestOps.accept(SelectionKey.OP_WRITE);
 
                         break;
 
@@ -220,6 +332,8 @@ public class SecureChannel {
             throw new IllegalStateException();
         }
 
+        acquireBuffers();
+
         int pos = mInAppBB.position();
 
         if (mSocketChannel.read(mInNetBB) == -1) {
@@ -265,6 +379,11 @@ public class SecureChannel {
         return (mInAppBB.position() - pos);
     }
 
+    /*
+     * Wraps as many TLS records as fit to the outbound batch and writes them with one
+     * gathering write. Returns number of application bytes consumed. Returns 0 when
+     * earlier records are still waiting for the socket.
+     */
     int write(ByteBuffer outAppBB) throws IOException {
 
         if (!mInitialHSComplete) {
@@ -273,43 +392,111 @@ public class SecureChannel {
 
         int retValue = 0;
 
-        if (mOutNetBB.hasRemaining() && !tryFlush(mOutNetBB)) {
+        if (mOutNetBB != null && mOutNetBB.hasRemaining() && !tryFlush(mOutNetBB)) {
             return retValue;
         }
 
-        mOutNetBB.clear();
+        if (!flushBatch()) {
+            return retValue;
+        }
 
-        SSLEngineResult result = mSSLEngine.wrap(outAppBB, mOutNetBB);
-        retValue = result.bytesConsumed();
+        mOutBatchCount = 0;
+        mOutBatchOffset = 0;
 
-        mOutNetBB.flip();
+        while (outAppBB.hasRemaining() && mOutBatchCount < mOutBatch.length) {
+            if (mOutBatch[mOutBatchCount] == null) {
+                mOutBatch[mOutBatchCount] = BufferPool.instance.acquire( mNetBBSize );
+            }
 
-        switch (result.getStatus()) {
+            ByteBuffer outNetBB = mOutBatch[mOutBatchCount];
+            outNetBB.clear();
 
-            case OK:
-                if (result.getHandshakeStatus() == HandshakeStatus.NEED_TASK) {
-                    doSLLEngineTasks();
-                }
-                break;
+            SSLEngineResult result = mSSLEngine.wrap(outAppBB, outNetBB);
+            retValue += result.bytesConsumed();
 
-            default:
-                throw new IOException("sslEngine error during data write: " + result.getStatus());
-        }
+            outNetBB.flip();
 
-        if (mOutNetBB.hasRemaining()) {
-            tryFlush(mOutNetBB);
+            switch (result.getStatus()) {
+
+                case OK:
+                    if (result.getHandshakeStatus() == HandshakeStatus.NEED_TASK) {
+                        doSLLEngineTasks();
+                    }
+                    break;
+
+                default:
+                    throw new IOException("sslEngine error during data write: " + result.getStatus());
+            }
+
+            mOutBatchCount++;
         }
 
+        Metrics.record("tls.write.records", mOutBatchCount);
+
+        flushBatch();
+
         return retValue;
 
     }
 
+    private boolean flushBatch() throws IOException {
+        if (mOutBatchOffset >= mOutBatchCount) {
+            return true;
+        }
+
+        mSocketChannel.write(mOutBatch, mOutBatchOffset, mOutBatchCount - mOutBatchOffset);
+        mWriteCalls++;
+
+        while (mOutBatchOffset < mOutBatchCount && !mOutBatch[mOutBatchOffset].hasRemaining()) {
+            mOutBatchOffset++;
+        }
+
+        return mOutBatchOffset >= mOutBatchCount;
+    }
+
     boolean flush() throws IOException{
-        if (mOutNetBB.hasRemaining()) {
+        if (mOutNetBB != null && mOutNetBB.hasRemaining()) {
             tryFlush(mOutNetBB);
         }
 
-        return !mOutNetBB.hasRemaining();
+        return (mOutNetBB == null || !mOutNetBB.hasRemaining()) && flushBatch();
+    }
+
+    /*
+     * Returns number of socket write calls since previous call.
+     */
+    int takeWriteCalls() {
+        int writeCalls = mWriteCalls;
+        mWriteCalls = 0;
+        return writeCalls;
+    }
+
+    /*
+     * Delegated tasks of the initial handshake are not run by doHandshake but left for
+     * the caller to run with runTasks on another thread.
+     */
+    void delegateTasks() {
+        mDelegateTasks = true;
+    }
+
+    boolean needsTasks() {
+        return mNeedsTasks;
+    }
+
+    /*
+     * Runs delegated handshake tasks. Channel must not be used by other threads
+     * while the tasks run.
+     */
+    void runTasks() {
+        boolean cpuTimeSupported = THREAD_MX_BEAN.isCurrentThreadCpuTimeSupported();
+        long cpuTime = cpuTimeSupported ? THREAD_MX_BEAN.getCurrentThreadCpuTime() : 0;
+
+        mInitialHSStatus = doSLLEngineTasks();
+        mNeedsTasks = false;
+
+        if (cpuTimeSupported) {
+            Metrics.record("tls.tasks.cpu.nanos", THREAD_MX_BEAN.getCurrentThreadCpuTime() - cpuTime);
+        }
     }
 
     private SSLEngineResult.HandshakeStatus doSLLEngineTasks() {
@@ -324,11 +511,23 @@ public class SecureChannel {
 
     boolean shutdown() throws IOException {
 
+        // Closed before handshake started. Nothing to tell the peer.
+        if (mSSLEngine == null) {
+            return true;
+        }
+
         if (!mShutdown) {
             mSSLEngine.closeOutbound();
             mShutdown = true;
         }
 
+        acquireBuffers();
+
+        // Application data goes out before close_notify
+        if (!flushBatch()) {
+            return false;
+        }
+
         if (mOutNetBB.hasRemaining() && tryFlush(mOutNetBB)) {
             return false;
         }
@@ -351,7 +550,23 @@ public class SecureChannel {
         return ( !mOutNetBB.hasRemaining() && (result.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NEED_WRAP ));
     }
 
+    boolean isHandshakeComplete() {
+        return mInitialHSComplete;
+    }
+
+    boolean isInboundDone() {
+        return mSSLEngine.isInboundDone();
+    }
+
     void close() throws IOException {
-        mSocketChannel.close();
+        try {
+            mSocketChannel.close();
+        } finally {
+            BufferPool.instance.release( mInAppBB );
+            BufferPool.instance.release( mInNetBB );
+            BufferPool.instance.release( mOutNetBB );
+            mInAppBB = mInNetBB = mOutNetBB = null;
+            releaseBatch();
+        }
     }
 }
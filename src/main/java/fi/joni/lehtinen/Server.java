@@ -3,11 +3,14 @@ package fi.joni.lehtinen;
 import javax.net.ssl.*;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.lang.reflect.Method;
 import java.net.InetSocketAddress;
 import java.net.StandardSocketOptions;
 import java.nio.channels.ServerSocketChannel;
 import java.security.*;
 import java.security.cert.CertificateException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class Server {
 
@@ -16,7 +19,7 @@ public class Server {
 
 
     public Server(){
-        this(8000,1024);
+        this( Configuration.instance.getInt( "port", 8000 ), Configuration.instance.getInt( "backlog", 1024 ) );
     }
 
     public Server( int port, int backlog ){
@@ -52,30 +55,74 @@ public class Server {
             TrustManagerFactory tmf = TrustManagerFactory.getInstance( "SunX509" );
             tmf.init( ksTrust );
 
+            // Stateless resumption with session tickets. Read by the JDK (13 or later) when
+            // TLS is first used so it has to be set before the context is created.
+            System.setProperty( "jdk.tls.server.enableSessionTicketExtension",
+                    Boolean.toString( Configuration.instance.getBoolean( "tls.sessionTickets", true ) ) );
+
             mSSLContext = SSLContext.getInstance( "TLS" );
             mSSLContext.init( kmf.getKeyManagers(), tmf.getTrustManagers(), null );
 
+            // Reconnecting clients resume their session instead of doing full handshake
+            SSLSessionContext sessionContext = mSSLContext.getServerSessionContext();
+            sessionContext.setSessionCacheSize( Configuration.instance.getInt( "tls.sessionCacheSize", 50000 ) );
+            sessionContext.setSessionTimeout( Configuration.instance.getInt( "tls.sessionTimeout", 24 * 60 * 60 ) );
+
         } catch( KeyStoreException | NoSuchAlgorithmException | CertificateException | UnrecoverableKeyException | KeyManagementException | IOException e ) {
             e.printStackTrace();
         }
     }
 
+    /*
+     * Virtual threads are used when running on Java 21 or later. Older runtimes fall back to
+     * platform thread per session.
+     */
+    private static ExecutorService createSessionExecutor() {
+        try {
+            Method method = Executors.class.getMethod( "newVirtualThreadPerTaskExecutor" );
+            return (ExecutorService)method.invoke( null );
+        } catch( ReflectiveOperationException e ) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
     public static void main( String[] args ) {
 
         Server server = new Server();
-        Dispatcher dispatcher = null;
+
+        // Locations are read before clients can send new ones
+        LocationTable.instance.warm();
+
+        if( "thread".equals( Configuration.instance.getString( "mode", "selector" ) ) ) {
+            // Thread per session mode. No Dispatchers, every connection is served by its own thread.
+            new Thread( new Acceptor( server.mServerSocketChannel, server.mSSLContext, createSessionExecutor() ), "Acceptor" ).start();
+
+            Metrics.startReporter( Configuration.instance.getLong( "metrics.reportInterval", 60 ) );
+            return;
+        }
+
+        Dispatcher[] dispatchers = new Dispatcher[ Dispatcher.getDispatcherCount() ];
 
         try {
-            dispatcher = new Dispatcher();
+            for( int i = 0; i < dispatchers.length; i++ ) {
+                dispatchers[ i ] = new Dispatcher( Stage.network );
+                Metrics.gauge( "dispatcher." + i + ".connections", dispatchers[ i ]::getConnectionCount );
+            }
         } catch( IOException e ) {
             e.printStackTrace();
             System.exit( 0 );
         }
 
-        Acceptor acceptor = new Acceptor( server.mServerSocketChannel, server.mSSLContext, dispatcher );
+        Metrics.gauge( "admission.inFlight", Dispatcher::getInFlight );
+
+        Acceptor acceptor = new Acceptor( server.mServerSocketChannel, server.mSSLContext, dispatchers );
+
+        for( int i = 0; i < dispatchers.length; i++ )
+            new Thread( dispatchers[ i ], "Dispatcher-" + i ).start();
+
+        new Thread( acceptor, "Acceptor" ).start();
 
-        new Thread( dispatcher ).start();
-        new Thread( acceptor ).start();
+        Metrics.startReporter( Configuration.instance.getLong( "metrics.reportInterval", 60 ) );
 
     }
 
@@ -1,98 +1,308 @@
 package fi.joni.lehtinen;
 
-import fi.joni.lehtinen.friendfinder.connectionprotocol.*;
-import fi.joni.lehtinen.friendfinder.connectionprotocol.dto.*;
-
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
-import java.nio.charset.StandardCharsets;
-import java.sql.SQLException;
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
-import java.util.ArrayList;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SessionHandler implements Runnable, SessionRegistry.Subscriber {
 
-public class SessionHandler implements Runnable {
+    public enum State {RECEIVE,PROCESS,SEND}
 
-    public enum State {RECEIVE,SEND}
+    // Pushes a slow client hasn't taken yet. Oldest is dropped first since newer location supersedes it.
+    private static final int MAX_QUEUED_PUSHES = Configuration.instance.getInt( "push.maxQueued", 64 );
 
     private SecureChannel mSecureChannel;
     private SelectionKey mSelectionKey;
-    private Selector mSelector;
+    private Dispatcher mDispatcher;
     private State mState = State.RECEIVE;
-    private ByteBuffer mRequestBB;
-    private ConnectionProtocol.Protocols mProtocol;
-    private Reply mReply;
+    private RequestProcessor mRequestProcessor = new RequestProcessor();
     private ByteBuffer mReplyBB;
-    private boolean mIsLoggedIn = false;
     private boolean mIsChannelClosed = false;
-    private long mUserID;
+    private int mInterestOps = SelectionKey.OP_READ;
+    private boolean mRunAgain = false;
+
+    // Outbound frames pushed by other sessions. Written only between replies.
+    private final ConcurrentLinkedQueue<ByteBuffer> mPushes = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger mPushCount = new AtomicInteger();
+
+    // Following are only accessed by Dispatcher thread
+    private final long mCreated = System.currentTimeMillis();
+    private long mLastActivity = mCreated;
+    private boolean mInFlight = false;
+    private boolean mParked = false;
 
     public SessionHandler( SecureChannel secureChannel ) {
         mSecureChannel = secureChannel;
+        mSecureChannel.delegateTasks();
+        mRequestProcessor.setSubscriber( this );
     }
 
     public void setSelectionKey( SelectionKey selectionKey ) {
         mSelectionKey = selectionKey;
     }
 
+    public SelectionKey getSelectionKey() {
+        return mSelectionKey;
+    }
+
+    SocketChannel getChannel() {
+        return mSecureChannel.getSocketChannel();
+    }
+
+    /*
+     * Interestops are only recorded here. Dispatcher applies them after the worker has
+     * handed session back with Dispatcher.update.
+     */
+    void interestOps( int ops ) {
+        mInterestOps = ops;
+    }
+
+    int getInterestOps() {
+        return mInterestOps;
+    }
+
+    /*
+     * True once after worker has asked session to be dispatched again without readiness.
+     */
+    boolean takeRunAgain() {
+        boolean runAgain = mRunAgain;
+        mRunAgain = false;
+        return runAgain;
+    }
+
+    /*
+     * Called by Dispatcher when session is handed to worker.
+     */
+    void dispatched( long now ) {
+        mLastActivity = now;
+        mInFlight = true;
+        mParked = false;
+    }
+
+    /*
+     * Called by Dispatcher when session waits for capacity.
+     */
+    void parked() {
+        mInFlight = false;
+        mParked = true;
+    }
+
+    boolean isParked() {
+        return mParked;
+    }
+
+    /*
+     * Called by Dispatcher when worker has handed session back.
+     */
+    void returned() {
+        mInFlight = false;
+    }
+
+    boolean isInFlight() {
+        return mInFlight;
+    }
+
+    long getCreated() {
+        return mCreated;
+    }
+
+    long getLastActivity() {
+        return mLastActivity;
+    }
+
+    boolean isHandshakeComplete() {
+        return mSecureChannel.isHandshakeComplete();
+    }
+
+    /*
+     * Queues frame pushed by another session and asks Dispatcher to get this session written.
+     */
+    @Override
+    public void push( ByteBuffer frame ) {
+        if( mPushCount.incrementAndGet() > MAX_QUEUED_PUSHES && takePush() != null )
+            Metrics.increment( "push.dropped" );
+
+        mPushes.offer( frame );
+        mDispatcher.push( this );
+    }
+
+    boolean hasPushes() {
+        return !mPushes.isEmpty();
+    }
+
+    private ByteBuffer takePush() {
+        ByteBuffer push = mPushes.poll();
+
+        if( push != null )
+            mPushCount.decrementAndGet();
+
+        return push;
+    }
+
+    boolean isOpen() {
+        return mSelectionKey != null && mSelectionKey.isValid();
+    }
+
+    /*
+     * Closes session that has timed out or failed. Close_notify is sent if socket takes it, but
+     * there is no waiting for the peer.
+     */
+    void evict() {
+        try {
+            mSecureChannel.shutdown();
+        } catch( IOException e ) {
+            // Peer is gone anyway
+        }
+
+        try {
+            mSecureChannel.close();
+        } catch( IOException e ) {
+            e.printStackTrace();
+        }
+
+        mRequestProcessor.close();
+        mDispatcher.cancel( mSelectionKey );
+    }
+
+    /*
+     * Runs on network stage in RECEIVE and SEND states and on crypto or database stage in
+     * PROCESS state. Session is handed back to Dispatcher only when no other stage has it.
+     */
     @Override
     public void run() {
+        boolean handedOff = false;
+
         try {
 
             switch( mState ) {
                 case RECEIVE:
-                    if( mIsChannelClosed || !receive() ){
+                    // Pushes queued while session was waiting go out before anything else
+                    ByteBuffer push = mIsChannelClosed ? null : takePush();
+                    if( push != null ){
+                        mReplyBB = push;
+                        mState = State.SEND;
+                        break;
+                    }
+
+                    // Requests left over from previous pipelined batch are handled before reading more
+                    if( !mRequestProcessor.hasCompleteRequest() && ( mIsChannelClosed || !receive() ) ){
                         // If channel is closed close securechannel and cancel selection key registration
                         if(mIsChannelClosed){
                             if(mSecureChannel.shutdown()){
                                 mSecureChannel.close();
-                                mSelectionKey.cancel();
+                                mRequestProcessor.close();
+                                mDispatcher.cancel( mSelectionKey );
                             } else {
-                                mSelectionKey.interestOps(SelectionKey.OP_WRITE);
+                                interestOps(SelectionKey.OP_WRITE);
                             }
+                        } else if(mSecureChannel.needsTasks()){
+                            // Handshake continues on network stage when the tasks are done
+                            handedOff = true;
+                            runHandshakeTasks();
                         }
                         return;
                     }
 
-                    mRequestBB.flip();
-
-                    parse();
+                    if( !Dispatcher.isBusy() ){
+                        // Execute requests on stage that fits them. Session comes back to
+                        // network stage to send the reply.
+                        mState = State.PROCESS;
+                        ( mRequestProcessor.needsCrypto() ? Stage.crypto : Stage.database ).execute( this );
+                        handedOff = true;
+                        return;
+                    }
 
-                    // Switch state to Send so that if Reply can't be sent this time we skip receive segment.
-                    // Fall through to send
+                    // Busy reply is cheap. Build it here and fall through to send.
+                    mReplyBB = mRequestProcessor.process( true );
                     mState = State.SEND;
-
+                    break;
+                case PROCESS:
                     // Populate reply bytebuffer.
-                    mReplyBB = PacketParser.getMessage( ConnectionProtocol.Protocols.REPLY, mReply );
+                    mReplyBB = mRequestProcessor.process( false );
 
-                    for(String s : new String(mReplyBB.array(), StandardCharsets.UTF_8).split( "\n" ))
-                        System.out.print(s);
+                    // Switch state to Send so that if Reply can't be sent this time we skip receive segment.
+                    mState = State.SEND;
+                    Stage.network.execute( this );
+                    handedOff = true;
+                    return;
                 case SEND:
-                    if(send()){
-                        // More bytes remain to be written
-                        mSelectionKey.interestOps(SelectionKey.OP_WRITE);
-                    } else {
-                        // Reply sent. Go back to receiving data from client
-                        mState = State.RECEIVE;
-                        mSelectionKey.interestOps(SelectionKey.OP_READ);
-                    }
+                    break;
+            }
 
+            if(send()){
+                // More bytes remain to be written
+                interestOps(SelectionKey.OP_WRITE);
+            } else if(mRequestProcessor.hasCompleteRequest()) {
+                // Client pipelined more requests than one round handles. No readiness
+                // will come for them so Dispatcher is asked to run session again.
+                mState = State.RECEIVE;
+                mRunAgain = true;
+                interestOps(0);
+            } else {
+                // Reply sent. Go back to receiving data from client
+                mState = State.RECEIVE;
+                interestOps(SelectionKey.OP_READ);
             }
-        } catch( IOException | SQLException e ) {
+
+        } catch( IOException e ) {
+            // Reset peer, broken pipe or failed handshake. Socket would be ready again at once
+            // and fail the same way, so the session is closed instead of re-armed.
             e.printStackTrace();
+            mState = State.RECEIVE;
+            evict();
+        } catch( RuntimeException e ) {
+            // Request failures are answered by RequestProcessor. What gets here is broken
+            // framing or a bug, so there is no telling where the next request starts.
+            e.printStackTrace();
+            mState = State.RECEIVE;
+            evict();
         } finally {
 
-            // Wakeup selector everytime handler has done its job so that selector can
-            // see the changes in selectionkeys' interestops'
-            mSelector.wakeup();
+            // Hand session back to Dispatcher so that it applies the new interestops.
+            if( !handedOff ) {
+                // Session waits for socket now. Give back buffers that hold no data.
+                mSecureChannel.releaseBuffers();
+                mRequestProcessor.releaseBuffers();
+
+                mDispatcher.update( this );
+            }
+        }
+
+    }
+
+    private void runHandshakeTasks() {
+        try {
+            Stage.handshake.execute( this::handshakeTasks );
+        } catch( RejectedExecutionException e ) {
+            // Handshake stage is full. Run the tasks on this thread.
+            Metrics.increment( "stage.handshake.rejected" );
+            handshakeTasks();
+        }
+    }
+
+    /*
+     * Runs handshake tasks and hands session back to network stage. Session whose tasks fail
+     * is closed and handed back to Dispatcher, so it doesn't stay in flight.
+     */
+    private void handshakeTasks() {
+        try {
+            mSecureChannel.runTasks();
+        } catch( RuntimeException e ) {
+            e.printStackTrace();
+            evict();
+            mDispatcher.update( this );
+            return;
         }
 
+        Stage.network.execute( this );
     }
 
     private boolean receive() throws IOException {
-        if (!mSecureChannel.doHandshake(mSelectionKey)) {
+        if (!mSecureChannel.doHandshake(this::interestOps)) {
             return false;
         }
 
@@ -102,256 +312,46 @@ public class SessionHandler implements Runnable {
             return false;
         }
 
-        ByteBuffer readBuffer = mSecureChannel.getReadBuffer();
-
-        // Prepare mRequest buffer so that it can be given to ConnectionProtocol.copyReadBufferTo
-        // as a parameter
-        if(mRequestBB == null){
-            mRequestBB = ByteBuffer.allocate( readBuffer.capacity() );
-        } else if(readBuffer.position() - mRequestBB.position() > mRequestBB.remaining()){
-            ByteBuffer temp = ByteBuffer.allocate( readBuffer.capacity() );
-            mRequestBB.flip();
-            temp.put(mRequestBB);
-            mRequestBB = temp;
-        }
-
-        // Read the new bytes into requestBB and check if complete message has been read
-        if ( ConnectionProtocol.copyReadBufferTo( readBuffer, mRequestBB ))
+        if ( mRequestProcessor.receive( mSecureChannel.getReadBuffer() ))
             return true;
 
         // Message still not received. Prepare to read again.
-        mSelectionKey.interestOps(SelectionKey.OP_READ);
+        interestOps(SelectionKey.OP_READ);
 
         return false;
     }
 
-    private void parse() throws IllegalArgumentException, SQLException {
-        mReply = new Reply();
-
-        // Fetch mRequest content
-        byte[] bytes = new byte[mRequestBB.limit()];
-        mRequestBB.get( bytes );
-
-        String request = new String( bytes, StandardCharsets.UTF_8 );
-        String[] parts = request.split( ConnectionProtocol.MESSAGE_SPLIT_CHAR );
-
-        mProtocol = ConnectionProtocol.Protocols.valueOf( parts[0] );
-        Sendable sendable = PacketParser.build( mProtocol, parts );
-
-        System.out.print( LocalDateTime.now().format( DateTimeFormatter.ISO_LOCAL_TIME ) + " => ID: " + mUserID + " | ");
-        for(String s : parts)
-            System.out.print(s + " | ");
-        System.out.println();
-
-        DAO dao = new DAO();
-        Login login;
-        User user;
-        CircleMember circleMember;
-
-        dao.init();
+    /*
+     * Writes reply until it is sent or socket is full. Returns true when bytes remain.
+     */
+    private boolean send() throws IOException {
+        for(;;) {
+            while(mReplyBB.hasRemaining()){
+                // Nothing consumed means earlier records are still waiting for the socket
+                if(mSecureChannel.write( mReplyBB ) == 0)
+                    break;
+            }
 
-        switch( mProtocol ){
-            case EMAIL_TAKEN:
-                boolean taken = dao.emailTaken( (Login)sendable );
-                mReply.mReplyCode = Reply.ReplyCode.EMAIL_TAKEN;
-                mReply.addMessage( new byte[]{(byte)(taken ? 1 : 0)} );
-                break;
-            case LOGIN:
-                login = (Login)sendable;
-                user = dao.getUser( login );
-                if(user == null){
-                    mReply.mReplyCode = Reply.ReplyCode.CREDENTIAL_ERROR_EMAIL;
-                } else if( Authentication.verify( login.mPassword, user.mIterations, user.mSalt, user.mHash )){
-                    mReply.mReplyCode = Reply.ReplyCode.LOGIN_SUCCESSFUL;
-
-                    mReply.addMessage( Utility.longToByteArray( user.mID ) );
-                    mReply.addMessage( user.mFirstName.getBytes( StandardCharsets.UTF_8 ) );
-                    mReply.addMessage( user.mLastName.getBytes( StandardCharsets.UTF_8 ) );
-                    mReply.addMessage( user.mEmail.getBytes( StandardCharsets.UTF_8 ) );
-                    mReply.addMessage( Utility.passwordEncode( user.mHash ).getBytes( StandardCharsets.UTF_8 ) );
-
-                    mUserID = user.mID;
-                    mIsLoggedIn = true;
-                } else {
-                    mReply.mReplyCode = Reply.ReplyCode.CREDENTIAL_ERROR_PASSWORD;
-                }
-                break;
-            case LOGIN_HASH:
-                login = (Login)sendable;
-                user = dao.getUser( login );
-                if(user == null){
-                    mReply.mReplyCode = Reply.ReplyCode.CREDENTIAL_ERROR_EMAIL;
-                } else if( Authentication.verify( login.mHash, user.mHash )){
-                    mReply.mReplyCode = Reply.ReplyCode.LOGIN_SUCCESSFUL;
-
-                    mReply.addMessage( Utility.longToByteArray( user.mID ) );
-                    mReply.addMessage( user.mFirstName.getBytes( StandardCharsets.UTF_8 ) );
-                    mReply.addMessage( user.mLastName.getBytes( StandardCharsets.UTF_8 ) );
-
-                    mUserID = user.mID;
-                    mIsLoggedIn = true;
-                } else {
-                    System.out.println(Utility.passwordEncode( login.mHash ));
-                    System.out.println(Utility.passwordEncode(Utility.passwordDecode( Utility.passwordEncode( login.mHash ))));
-                    System.out.println(Utility.passwordEncode( user.mHash ));
-                    mReply.mReplyCode = Reply.ReplyCode.CREDENTIAL_ERROR_PASSWORD;
-                }
-                break;
-            case REGISTER:
-                Register register = (Register)sendable;
-                switch( dao.register( register ) ){
-                    case 0:
-                        user = dao.getUser( register );
-
-                        mReply.mReplyCode = Reply.ReplyCode.REGISTERATION_SUCCESSFUL;
-
-                        mReply.addMessage( Utility.longToByteArray( user.mID ) );
-                        mReply.addMessage( user.mFirstName.getBytes( StandardCharsets.UTF_8 ) );
-                        mReply.addMessage( user.mLastName.getBytes( StandardCharsets.UTF_8 ) );
-                        mReply.addMessage( user.mEmail.getBytes( StandardCharsets.UTF_8 ) );
-                        mReply.addMessage( Utility.passwordEncode( user.mHash ).getBytes( StandardCharsets.UTF_8 ) );
-
-                        mUserID = user.mID;
-                        mIsLoggedIn = true;
-                        break;
-                    case 23505:
-                        mReply.mReplyCode = Reply.ReplyCode.EMAIL_TAKEN;
-                        break;
-                    default:
-                        mReply.mReplyCode = Reply.ReplyCode.UNKNOWN_ERROR;
-                }
+            if(mReplyBB.hasRemaining())
                 break;
-            case LOCATION:
-                if(!mIsLoggedIn){
-                    // This should not happen, but in case it does
-                    mReply.mReplyCode = Reply.ReplyCode.NOT_LOGGED_IN;
-                } else {
-                    Location location = (Location)sendable;
-
-                    if(location.mUserID != mUserID){
-                        mReply.mReplyCode = Reply.ReplyCode.WRONG_USER_ID;
-                        break;
-                    }
 
-                    switch( dao.addLocation( location ) ){
-                        case 0:
-                            mReply.mReplyCode = Reply.ReplyCode.LOCATION_TRANSFER_SUCCESS;
-                            break;
-                        default:
-                            mReply.mReplyCode = Reply.ReplyCode.UNKNOWN_ERROR;
-
-                    }
-                }
-
-                break;
-            case CREATE_CIRCLE:
-                if(!mIsLoggedIn){
-                    // This should not happen, but in case it does
-                    mReply.mReplyCode = Reply.ReplyCode.NOT_LOGGED_IN;
-                } else {
-                    long group_id = dao.createCircle( (Circle)sendable, mUserID );
-                    if( group_id != -1 ) {
-                        mReply.mReplyCode = Reply.ReplyCode.CIRCLE_CREATE_SUCCESSFUL;
-                        mReply.addMessage( Utility.longToByteArray( group_id ) );
-                    } else {
-                        mReply.mReplyCode = Reply.ReplyCode.UNKNOWN_ERROR;
-                    }
-                }
-                break;
-            case JOIN_REQUESTS:
-                if(!mIsLoggedIn){
-                    // This should not happen, but in case it does
-                    mReply.mReplyCode = Reply.ReplyCode.NOT_LOGGED_IN;
-                } else {
-                    mReply.mReplyCode = Reply.ReplyCode.JOIN_REQUEST_SUCCESSFUL;
-                    ArrayList<Circle> circles = dao.getJoinRequests( mUserID );
-
-                    for(Circle circle : circles)
-                        mReply.addMessage( (circle.mID + "," + circle.mName).getBytes( StandardCharsets.UTF_8 ) );
-                }
-                break;
-            case CONFIRM_JOIN_REQUEST:
-                switch( dao.confirmCircle( (Circle)sendable, mUserID, mReply ) ){
-                    case 0:
-                        mReply.mReplyCode = Reply.ReplyCode.JOIN_REQUEST_CONFIRMED_SUCCESSFULLY;
-                        break;
-                    default:
-                        mReply.mReplyCode = Reply.ReplyCode.JOIN_REQUEST_ERROR;
-                }
-                break;
-            case DECLINE_JOIN_REQUEST:
-                switch( dao.declineCircle( (Circle)sendable, mUserID ) ){
-                    case 0:
-                        mReply.mReplyCode = Reply.ReplyCode.JOIN_REQUEST_DECLINED_SUCCESSFULLY;
-                        break;
-                    default:
-                        mReply.mReplyCode = Reply.ReplyCode.JOIN_REQUEST_ERROR;
-                }
-                break;
-            case ADD_CIRCLE_MEMBER:
-                switch( dao.addCircleMember( (CircleMember)sendable, mUserID ) ){
-                    case 0:
-                        mReply.mReplyCode = Reply.ReplyCode.ADD_FRIEND_SUCCESSFUL;
-                        break;
-                    case -1:
-                        mReply.mReplyCode = Reply.ReplyCode.NOT_PART_OF_CIRCLE;
-                        break;
-                    case -2:
-                        mReply.mReplyCode = Reply.ReplyCode.FRIEND_NOT_FOUND;
-                        break;
-                    default:
-                        mReply.mReplyCode = Reply.ReplyCode.UNKNOWN_ERROR;
-                }
-                break;
-            case REMOVE_CIRCLE_MEMBER:
-                circleMember = (CircleMember)sendable;
-                switch( dao.removeCircleMember( circleMember, mUserID ) ){
-                    case 0:
-                        mReply.mReplyCode = Reply.ReplyCode.REMOVE_FRIEND_SUCCESSFUL;
-                        break;
-                    default:
-                        mReply.mReplyCode = Reply.ReplyCode.UNKNOWN_ERROR;
-                }
-                break;
-            case DELETE_CIRCLE:
-                switch( dao.deleteCircle( (Circle)sendable, mUserID ) ){
-                    case 0:
-                        mReply.mReplyCode = Reply.ReplyCode.CIRCLE_DELETE_SUCCESSFUL;
-                        break;
-                    default:
-                        mReply.mReplyCode = Reply.ReplyCode.UNKNOWN_ERROR;
-                }
+            // Whole frame is out. Pushes queued meanwhile follow it.
+            ByteBuffer push = takePush();
+            if(push == null)
                 break;
-            case CIRCLE_DATA:
-                switch( dao.getCircleData( mUserID, mReply ) ){
-                    case 0:
-                        mReply.mReplyCode = Reply.ReplyCode.DATA_REQUEST_SUCCESSFUL;
-                        break;
-                    default:
-                        mReply.mReplyCode = Reply.ReplyCode.DATA_REQUEST_ERROR;
-                }
-                break;
-            default:
-                mReply.mReplyCode = Reply.ReplyCode.UNKNOWN_REQUEST_FORMAT;
-        }
 
-        // Release connection back to connection pool
-        dao.close();
+            mReplyBB = push;
+        }
 
-        // Clear the request buffer. So it can handle next request
-        mRequestBB.clear();
+        boolean remaining = mReplyBB.hasRemaining() || !mSecureChannel.flush();
 
-    }
-
-    private boolean send() throws IOException {
-        if(mReplyBB.hasRemaining()){
-            mSecureChannel.write( mReplyBB );
-        }
+        if(!remaining)
+            Metrics.record( "reply.write.calls", mSecureChannel.takeWriteCalls() );
 
-        return mReplyBB.hasRemaining() || !mSecureChannel.flush();
+        return remaining;
     }
 
-    public void setSelector(Dispatcher dispatcher){
-        mSelector = dispatcher.getSelector();
+    public void setDispatcher(Dispatcher dispatcher){
+        mDispatcher = dispatcher;
     }
 }
@@ -0,0 +1,74 @@
+package fi.joni.lehtinen;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/*
+ * Sessions that have subscribed to location updates of their circles, by user. One user
+ * may be connected from several devices.
+ */
+public class SessionRegistry {
+
+    public static final SessionRegistry instance = new SessionRegistry();
+
+    /*
+     * Session that takes pushed frames. Push is called from the thread that accepted the
+     * update, so implementation only queues the frame.
+     */
+    interface Subscriber {
+        void push( ByteBuffer frame );
+    }
+
+    private final ConcurrentHashMap<Long,CopyOnWriteArrayList<Subscriber>> mSubscribers = new ConcurrentHashMap<>();
+
+    private SessionRegistry() {
+        Metrics.gauge( "push.subscribedUsers", mSubscribers::size );
+    }
+
+    void subscribe( long userID, Subscriber subscriber ) {
+        mSubscribers.compute( userID, ( id, subscribers ) -> {
+            if( subscribers == null )
+                subscribers = new CopyOnWriteArrayList<>();
+
+            subscribers.addIfAbsent( subscriber );
+            return subscribers;
+        });
+    }
+
+    void unsubscribe( long userID, Subscriber subscriber ) {
+        mSubscribers.computeIfPresent( userID, ( id, subscribers ) -> {
+            subscribers.remove( subscriber );
+            return subscribers.isEmpty() ? null : subscribers;
+        });
+    }
+
+    /*
+     * True when anyone at all is subscribed. Lets senders skip looking up their circles.
+     */
+    boolean hasSubscribers() {
+        return !mSubscribers.isEmpty();
+    }
+
+    /*
+     * Pushes frame to every session of the given users. Each session gets its own view of
+     * the frame so they can be written independently.
+     */
+    void publish( long[] userIDs, ByteBuffer frame ) {
+        int pushed = 0;
+
+        for( long userID : userIDs ) {
+            CopyOnWriteArrayList<Subscriber> subscribers = mSubscribers.get( userID );
+
+            if( subscribers == null )
+                continue;
+
+            for( Subscriber subscriber : subscribers ) {
+                subscriber.push( frame.asReadOnlyBuffer() );
+                pushed++;
+            }
+        }
+
+        Metrics.add( "push.sent", pushed );
+    }
+}
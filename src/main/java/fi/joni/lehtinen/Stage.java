@@ -0,0 +1,74 @@
+package fi.joni.lehtinen;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Independently sized thread pool for one kind of work. Session moves between stages
+ * but is only in one of them at a time, so its requests stay in order.
+ *
+ * network  - TLS handshake, unwrap and wrap, socket reads and writes
+ * crypto   - requests doing password hashing (LOGIN, REGISTER)
+ * database - every other request, which mostly waits for JDBC
+ * handshake - SSLEngine's delegated tasks during initial TLS handshake
+ *
+ * Queues other than handshake are unbounded because Dispatcher's admission control
+ * limits the number of sessions in flight over all stages. Handshake queue is bounded
+ * so that reconnect storm can't pile up key exchanges. Full queue rejects the task.
+ */
+public class Stage implements Executor {
+
+    public static final Stage network = new Stage( "network", Configuration.instance.getInt( "stage.network.threads", Dispatcher.getWorkerCount() ) );
+    public static final Stage crypto = new Stage( "crypto", Configuration.instance.getInt( "stage.crypto.threads", Math.max( 1, Runtime.getRuntime().availableProcessors() / 2 ) ) );
+    public static final Stage database = new Stage( "database", Configuration.instance.getInt( "stage.database.threads", Dispatcher.getWorkerCount() * 2 ) );
+    public static final Stage handshake = new Stage( "handshake",
+        Configuration.instance.getInt( "stage.handshake.threads", Math.max( 1, Runtime.getRuntime().availableProcessors() / 4 ) ),
+        Configuration.instance.getInt( "stage.handshake.queue", 256 ) );
+
+    private final String mName;
+    private final int mThreads;
+    private final ThreadPoolExecutor mThreadPool;
+
+    private Stage( String name, int threads ) {
+        this( name, threads, Integer.MAX_VALUE );
+    }
+
+    private Stage( String name, int threads, int queueCapacity ) {
+        mName = name;
+        mThreads = threads;
+
+        AtomicInteger threadNumber = new AtomicInteger();
+        mThreadPool = new ThreadPoolExecutor( threads, threads,
+            0L, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<>( queueCapacity ),
+            runnable -> new Thread( runnable, name + "-" + threadNumber.getAndIncrement() ) );
+
+        Metrics.gauge( "stage." + name + ".queue", () -> mThreadPool.getQueue().size() );
+    }
+
+    public int getThreads() {
+        return mThreads;
+    }
+
+    /*
+     * Runs task on this stage and records how long it waited in the queue and how long it ran.
+     */
+    @Override
+    public void execute( Runnable task ) {
+        long queued = System.nanoTime();
+
+        mThreadPool.execute( () -> {
+            long started = System.nanoTime();
+            Metrics.record( "stage." + mName + ".wait.nanos", started - queued );
+
+            try {
+                task.run();
+            } finally {
+                Metrics.record( "stage." + mName + ".run.nanos", System.nanoTime() - started );
+            }
+        });
+    }
+}
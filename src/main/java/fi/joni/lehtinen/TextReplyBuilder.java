@@ -0,0 +1,100 @@
+package fi.joni.lehtinen;
+
+import fi.joni.lehtinen.friendfinder.connectionprotocol.ConnectionProtocol;
+import fi.joni.lehtinen.friendfinder.connectionprotocol.PacketParser;
+import fi.joni.lehtinen.friendfinder.connectionprotocol.Reply;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/*
+ * Reply in the text protocol. Records are written as comma separated fields ending with
+ * semicolon and every record message ends with one more semicolon so that empty message
+ * is not empty.
+ */
+public class TextReplyBuilder extends ReplyBuilder {
+
+    private static final Log.Category LOG = Log.category( "reply" );
+
+    private Reply mReply = new Reply();
+    private StringBuilder mMessage = new StringBuilder();
+    private boolean mFirstField;
+
+    @Override
+    public void addMessage( byte[] message ) {
+        mReply.addMessage( message );
+    }
+
+    @Override
+    public void beginMessage() {
+        mMessage.setLength( 0 );
+        mFirstField = true;
+    }
+
+    @Override
+    public ReplyBuilder addId( long value ) {
+        separate();
+        mMessage.append( value );
+        return this;
+    }
+
+    @Override
+    public ReplyBuilder addCoordinate( double value ) {
+        separate();
+        mMessage.append( value );
+        return this;
+    }
+
+    @Override
+    public ReplyBuilder addTime( long value ) {
+        separate();
+        mMessage.append( value );
+        return this;
+    }
+
+    @Override
+    public ReplyBuilder addString( String value ) {
+        separate();
+        mMessage.append( value );
+        return this;
+    }
+
+    @Override
+    public void endRecord() {
+        mMessage.append( ";" );
+        mFirstField = true;
+    }
+
+    @Override
+    public void endMessage() {
+        // In case if empty message
+        mMessage.append( ";" );
+
+        mReply.addMessage( mMessage.toString().getBytes( StandardCharsets.UTF_8 ) );
+    }
+
+    @Override
+    public void clear() {
+        mReply = new Reply();
+        mMessage.setLength( 0 );
+    }
+
+    @Override
+    ByteBuffer toBuffer() {
+        mReply.mReplyCode = mReplyCode;
+
+        // Populate reply bytebuffer. Text layout is owned by PacketParser.
+        ByteBuffer replyBB = PacketParser.getMessage( ConnectionProtocol.Protocols.REPLY, mReply );
+
+        LOG.debug( () -> StandardCharsets.UTF_8.decode( replyBB.duplicate() ).toString().replace( "\n", "" ) );
+
+        return replyBB;
+    }
+
+    private void separate() {
+        if( !mFirstField )
+            mMessage.append( "," );
+
+        mFirstField = false;
+    }
+}
@@ -0,0 +1,96 @@
+package fi.joni.lehtinen;
+
+import java.util.ArrayDeque;
+
+/*
+ * Hashed timing wheel that evicts idle sessions and sessions stuck in TLS handshake.
+ * Owned and advanced by one Dispatcher thread so it needs no synchronization.
+ *
+ * Activity does not move session in the wheel. Session only records its last activity time
+ * and when its bucket comes up the deadline is checked again. Session that is still alive is
+ * rescheduled to the bucket of its new deadline, so both activity and timeout are O(1).
+ */
+public class TimingWheel {
+
+    private final ArrayDeque<SessionHandler>[] mBuckets;
+    private final long mTickMillis;
+    private final long mIdleTimeout;
+    private final long mHandshakeTimeout;
+    private long mCurrentTick;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public TimingWheel( long tickMillis, int size, long idleTimeout, long handshakeTimeout, long now ) {
+        mBuckets = new ArrayDeque[ size ];
+        for( int i = 0; i < size; i++ )
+            mBuckets[ i ] = new ArrayDeque<>();
+
+        mTickMillis = tickMillis;
+        mIdleTimeout = idleTimeout;
+        mHandshakeTimeout = handshakeTimeout;
+        mCurrentTick = now / tickMillis;
+    }
+
+    public long getTickMillis() {
+        return mTickMillis;
+    }
+
+    public void add( SessionHandler handler ) {
+        schedule( handler, deadline( handler ) );
+    }
+
+    /*
+     * Processes every bucket whose tick has passed since previous call.
+     */
+    public void advance( long now ) {
+        long nowTick = now / mTickMillis;
+
+        // Buckets are all visited once per revolution anyway
+        if( nowTick - mCurrentTick > mBuckets.length )
+            mCurrentTick = nowTick - mBuckets.length;
+
+        while( mCurrentTick < nowTick ) {
+            mCurrentTick++;
+
+            ArrayDeque<SessionHandler> bucket = mBuckets[ (int)( mCurrentTick % mBuckets.length ) ];
+
+            for( int i = bucket.size(); i > 0; i-- ) {
+                SessionHandler handler = bucket.poll();
+
+                // Session closed itself. Just forget it.
+                if( !handler.isOpen() )
+                    continue;
+
+                // Worker is still handling session. Check again on next tick.
+                if( handler.isInFlight() ) {
+                    schedule( handler, now + mTickMillis );
+                    continue;
+                }
+
+                if( deadline( handler ) > now ) {
+                    schedule( handler, deadline( handler ) );
+                } else if( handler.isHandshakeComplete() ) {
+                    Metrics.increment( "sessions.evicted.idle" );
+                    handler.evict();
+                } else {
+                    Metrics.increment( "sessions.evicted.handshake" );
+                    handler.evict();
+                }
+            }
+        }
+    }
+
+    private long deadline( SessionHandler handler ) {
+        if( handler.isHandshakeComplete() )
+            return handler.getLastActivity() + mIdleTimeout;
+
+        return handler.getCreated() + mHandshakeTimeout;
+    }
+
+    private void schedule( SessionHandler handler, long deadline ) {
+        // Deadlines further than one revolution are placed in last bucket and rescheduled from there
+        long tick = Math.max( deadline / mTickMillis, mCurrentTick + 1 );
+        tick = Math.min( tick, mCurrentTick + mBuckets.length - 1 );
+
+        mBuckets[ (int)( tick % mBuckets.length ) ].add( handler );
+    }
+}
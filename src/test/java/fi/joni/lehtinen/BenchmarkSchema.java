@@ -0,0 +1,98 @@
+package fi.joni.lehtinen;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Properties;
+
+/*
+ * Seeded "FriendFinder" schema for benchmarks. Database is given with system properties
+ * benchmark.url, benchmark.user and benchmark.password. Benchmarks are skipped without
+ * them. Existing schema is never touched, benchmark needs a database without it.
+ *
+ * Every user is in CIRCLES_PER_USER circles of CIRCLE_SIZE confirmed members, one pending
+ * join request and has a location.
+ */
+class BenchmarkSchema {
+
+    static final int USERS = Integer.getInteger( "benchmark.users", 20000 );
+    static final int CIRCLE_SIZE = 8;
+    static final int CIRCLES_PER_USER = 3;
+    static final int CIRCLES = USERS * CIRCLES_PER_USER / CIRCLE_SIZE;
+
+    private static final String[] DDL = {
+            "CREATE SCHEMA \"FriendFinder\"",
+            "CREATE TABLE \"FriendFinder\".user ( id bigserial PRIMARY KEY, email text UNIQUE NOT NULL, firstname text, lastname text, iterations integer, salt bytea, password bytea )",
+            "CREATE TABLE \"FriendFinder\".group ( id bigserial PRIMARY KEY, name text )",
+            "CREATE TABLE \"FriendFinder\".groupmembers ( id bigserial PRIMARY KEY, group_id bigint NOT NULL REFERENCES \"FriendFinder\".group ON DELETE CASCADE, " +
+                    "user_id bigint NOT NULL REFERENCES \"FriendFinder\".user, confirmed boolean NOT NULL DEFAULT FALSE )",
+            "CREATE TABLE \"FriendFinder\".location ( id bigserial PRIMARY KEY, user_id bigint UNIQUE NOT NULL REFERENCES \"FriendFinder\".user, " +
+                    "latitude float8, longitude float8, accuracy float8, time_recorded bigint )",
+            "CREATE INDEX ON \"FriendFinder\".groupmembers ( user_id )",
+            "CREATE INDEX ON \"FriendFinder\".groupmembers ( group_id )"
+    };
+
+    /*
+     * Returns connection to benchmark database or null when it is not configured.
+     */
+    static Connection connect() throws SQLException {
+        String url = System.getProperty( "benchmark.url" );
+
+        if( url == null || url.isEmpty() )
+            return null;
+
+        Properties properties = new Properties();
+        properties.setProperty( "user", System.getProperty( "benchmark.user", "" ) );
+        properties.setProperty( "password", System.getProperty( "benchmark.password", "" ) );
+        // Server side statements from first execution, as Database sets up the pool
+        properties.setProperty( "prepareThreshold", "1" );
+
+        return DriverManager.getConnection( url, properties );
+    }
+
+    /*
+     * Creates and seeds the schema. Returns false if schema already exists.
+     */
+    static boolean create( Connection connection ) throws SQLException {
+        try( Statement statement = connection.createStatement() ) {
+            try( ResultSet resultSet = statement.executeQuery( "SELECT 1 FROM information_schema.schemata WHERE schema_name = 'FriendFinder'" ) ) {
+                if( resultSet.next() )
+                    return false;
+            }
+
+            for( String ddl : DDL )
+                statement.execute( ddl );
+
+            statement.execute( "INSERT INTO \"FriendFinder\".user (email,firstname,lastname,iterations) " +
+                    "SELECT 'user' || i || '@example.com', 'First' || i, 'Last' || i, 1000 FROM generate_series( 1, " + USERS + " ) i" );
+
+            statement.execute( "INSERT INTO \"FriendFinder\".group (name) SELECT 'Circle ' || i FROM generate_series( 1, " + CIRCLES + " ) i" );
+
+            // Member slots of all circles in order. Every USERS slots map to a permutation of
+            // users, so each user fills CIRCLES_PER_USER slots in different circles.
+            statement.execute( "INSERT INTO \"FriendFinder\".groupmembers (group_id,user_id,confirmed) " +
+                    "SELECT s / " + CIRCLE_SIZE + " + 1, ( s * 7919 ) % " + USERS + " + 1, TRUE FROM generate_series( 0, " + ( CIRCLES * CIRCLE_SIZE - 1 ) + " ) s" );
+
+            statement.execute( "INSERT INTO \"FriendFinder\".groupmembers (group_id,user_id,confirmed) " +
+                    "SELECT ( i * 31 ) % " + CIRCLES + " + 1, i, FALSE FROM generate_series( 1, " + USERS + " ) i" );
+
+            statement.execute( "INSERT INTO \"FriendFinder\".location (user_id,latitude,longitude,accuracy,time_recorded) " +
+                    "SELECT i, 60 + random(), 24 + random(), 10 + random() * 50, 1400000000000 + i FROM generate_series( 1, " + USERS + " ) i" );
+
+            statement.execute( "ANALYZE \"FriendFinder\".user" );
+            statement.execute( "ANALYZE \"FriendFinder\".group" );
+            statement.execute( "ANALYZE \"FriendFinder\".groupmembers" );
+            statement.execute( "ANALYZE \"FriendFinder\".location" );
+        }
+
+        return true;
+    }
+
+    static void drop( Connection connection ) throws SQLException {
+        try( Statement statement = connection.createStatement() ) {
+            statement.execute( "DROP SCHEMA \"FriendFinder\" CASCADE" );
+        }
+    }
+}
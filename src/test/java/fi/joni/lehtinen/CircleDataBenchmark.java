@@ -0,0 +1,237 @@
+package fi.joni.lehtinen;
+
+import org.junit.AfterClass;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/*
+ * Compares the five statements CIRCLE_DATA used to run against the single Query.CIRCLE_DATA
+ * on seeded schema. Reports client latency of the whole request and database time from
+ * EXPLAIN ANALYZE, which includes instrumentation overhead so it compares the two only. Run with
+ *
+ *   gradle test --tests fi.joni.lehtinen.CircleDataBenchmark -Dbenchmark.url=jdbc:postgresql://localhost/bench
+ */
+public class CircleDataBenchmark {
+
+    // Statements and their parameter counts as they were before Query.CIRCLE_DATA
+    private static final String[] OLD_STATEMENTS = {
+            "SELECT * FROM \"FriendFinder\".group WHERE \"FriendFinder\".group.id IN ( SELECT group_id FROM \"FriendFinder\".groupmembers WHERE user_id = ? AND confirmed = TRUE )",
+            "SELECT id, group_id, user_id FROM \"FriendFinder\".groupmembers WHERE \"FriendFinder\".groupmembers.group_id IN ( SELECT group_id FROM \"FriendFinder\".groupmembers WHERE user_id = ? AND confirmed = TRUE )",
+            "SELECT id, firstname, lastname FROM \"FriendFinder\".user WHERE \"FriendFinder\".user.id <> ? AND \"FriendFinder\".user.id IN ( SELECT \"FriendFinder\".groupmembers.user_id FROM \"FriendFinder\".groupmembers WHERE group_id IN ( SELECT group_id FROM \"FriendFinder\".groupmembers WHERE user_id = ? AND confirmed = TRUE ) )",
+            "SELECT * FROM \"FriendFinder\".group WHERE \"FriendFinder\".group.id IN ( SELECT group_id FROM \"FriendFinder\".groupmembers WHERE user_id = ? AND confirmed = FALSE )",
+            "SELECT * FROM \"FriendFinder\".location WHERE \"FriendFinder\".location.user_id <> ? AND \"FriendFinder\".location.user_id IN ( SELECT \"FriendFinder\".groupmembers.user_id FROM \"FriendFinder\".groupmembers WHERE group_id IN ( SELECT group_id FROM \"FriendFinder\".groupmembers WHERE user_id = ? AND confirmed = TRUE ) )"
+    };
+    private static final int[] OLD_PARAMETERS = { 1, 1, 2, 1, 2 };
+
+    private static final int WARMUP = 500;
+    private static final int REQUESTS = 2000;
+    private static final int EXPLAINED = 200;
+
+    private static final Pattern TIME = Pattern.compile( "(Planning|Execution) time: ([0-9.]+) ms", Pattern.CASE_INSENSITIVE );
+
+    private static Connection sConnection;
+
+    @BeforeClass
+    public static void setUp() throws SQLException {
+        sConnection = BenchmarkSchema.connect();
+        Assume.assumeNotNull( sConnection );
+
+        if( !BenchmarkSchema.create( sConnection ) ) {
+            sConnection.close();
+            sConnection = null;
+            Assume.assumeTrue( "FriendFinder schema exists", false );
+        }
+    }
+
+    @AfterClass
+    public static void tearDown() throws SQLException {
+        if( sConnection == null )
+            return;
+
+        BenchmarkSchema.drop( sConnection );
+        sConnection.close();
+    }
+
+    @Test
+    public void sameRows() throws SQLException {
+        Random random = new Random( 1 );
+
+        for( int i = 0; i < 50; i++ ) {
+            long id = 1 + random.nextInt( BenchmarkSchema.USERS );
+            assertArrayEquals( "user " + id, oldRowCounts( id ), newRowCounts( id ) );
+        }
+    }
+
+    @Test
+    public void compare() throws SQLException {
+        PreparedStatement[] old = new PreparedStatement[ OLD_STATEMENTS.length ];
+
+        for( int i = 0; i < old.length; i++ )
+            old[ i ] = sConnection.prepareStatement( OLD_STATEMENTS[ i ] );
+
+        try( PreparedStatement single = sConnection.prepareStatement( Query.CIRCLE_DATA.mSql ) ) {
+            Random random = new Random( 2 );
+
+            for( int i = 0; i < WARMUP; i++ ) {
+                long id = 1 + random.nextInt( BenchmarkSchema.USERS );
+                runOld( old, id );
+                runNew( single, id );
+            }
+
+            long[] oldNanos = new long[ REQUESTS ];
+            long[] newNanos = new long[ REQUESTS ];
+
+            for( int i = 0; i < REQUESTS; i++ ) {
+                long id = 1 + random.nextInt( BenchmarkSchema.USERS );
+
+                long started = System.nanoTime();
+                runOld( old, id );
+                oldNanos[ i ] = System.nanoTime() - started;
+
+                started = System.nanoTime();
+                runNew( single, id );
+                newNanos[ i ] = System.nanoTime() - started;
+            }
+
+            double oldDatabase = 0, newDatabase = 0;
+
+            for( int i = 0; i < EXPLAINED; i++ ) {
+                long id = 1 + random.nextInt( BenchmarkSchema.USERS );
+
+                for( int j = 0; j < OLD_STATEMENTS.length; j++ )
+                    oldDatabase += databaseMillis( OLD_STATEMENTS[ j ], id, OLD_PARAMETERS[ j ], false );
+
+                newDatabase += databaseMillis( Query.CIRCLE_DATA.mSql, id, 2, true );
+            }
+
+            System.out.println( "CIRCLE_DATA, " + BenchmarkSchema.USERS + " users, " + REQUESTS + " requests" );
+            report( "five statements", oldNanos, oldDatabase / EXPLAINED );
+            report( "Query.CIRCLE_DATA", newNanos, newDatabase / EXPLAINED );
+        } finally {
+            for( PreparedStatement statement : old ) {
+                if( statement != null )
+                    statement.close();
+            }
+        }
+    }
+
+    private static int runOld( PreparedStatement[] statements, long id ) throws SQLException {
+        int rows = 0;
+
+        for( int i = 0; i < statements.length; i++ ) {
+            for( int parameter = 1; parameter <= OLD_PARAMETERS[ i ]; parameter++ )
+                statements[ i ].setLong( parameter, id );
+
+            rows += consume( statements[ i ] );
+        }
+
+        return rows;
+    }
+
+    private static int runNew( PreparedStatement statement, long id ) throws SQLException {
+        statement.setLong( 1, id );
+        statement.setLong( 2, id );
+        statement.setBoolean( 3, true );
+
+        return consume( statement );
+    }
+
+    private static int consume( PreparedStatement statement ) throws SQLException {
+        int rows = 0;
+
+        try( ResultSet resultSet = statement.executeQuery() ) {
+            while( resultSet.next() ) {
+                resultSet.getObject( 1 );
+                rows++;
+            }
+        }
+
+        return rows;
+    }
+
+    private static int[] oldRowCounts( long id ) throws SQLException {
+        int[] counts = new int[ OLD_STATEMENTS.length ];
+
+        for( int i = 0; i < OLD_STATEMENTS.length; i++ ) {
+            try( PreparedStatement statement = sConnection.prepareStatement( OLD_STATEMENTS[ i ] ) ) {
+                for( int parameter = 1; parameter <= OLD_PARAMETERS[ i ]; parameter++ )
+                    statement.setLong( parameter, id );
+
+                counts[ i ] = consume( statement );
+            }
+        }
+
+        return counts;
+    }
+
+    private static int[] newRowCounts( long id ) throws SQLException {
+        int[] counts = new int[ OLD_STATEMENTS.length ];
+
+        try( PreparedStatement statement = sConnection.prepareStatement( Query.CIRCLE_DATA.mSql ) ) {
+            statement.setLong( 1, id );
+            statement.setLong( 2, id );
+            statement.setBoolean( 3, true );
+
+            try( ResultSet resultSet = statement.executeQuery() ) {
+                while( resultSet.next() )
+                    counts[ resultSet.getInt( "section" ) ]++;
+            }
+        }
+
+        return counts;
+    }
+
+    /*
+     * Planning and execution time of statement as reported by EXPLAIN ANALYZE.
+     */
+    private static double databaseMillis( String sql, long id, int parameters, boolean locations ) throws SQLException {
+        double millis = 0;
+
+        try( PreparedStatement statement = sConnection.prepareStatement( "EXPLAIN ANALYZE " + sql ) ) {
+            for( int parameter = 1; parameter <= parameters; parameter++ )
+                statement.setLong( parameter, id );
+
+            if( locations )
+                statement.setBoolean( parameters + 1, true );
+
+            try( ResultSet resultSet = statement.executeQuery() ) {
+                while( resultSet.next() ) {
+                    Matcher matcher = TIME.matcher( resultSet.getString( 1 ) );
+
+                    if( matcher.find() )
+                        millis += Double.parseDouble( matcher.group( 2 ) );
+                }
+            }
+        }
+
+        return millis;
+    }
+
+    private static void report( String name, long[] nanos, double databaseMillis ) {
+        long[] sorted = nanos.clone();
+        Arrays.sort( sorted );
+
+        long total = 0;
+
+        for( long n : sorted )
+            total += n;
+
+        System.out.printf( "  %-18s latency avg %.3f ms, p50 %.3f ms, p99 %.3f ms, database %.3f ms%n", name,
+                total / (double)sorted.length / 1e6,
+                sorted[ sorted.length / 2 ] / 1e6,
+                sorted[ sorted.length * 99 / 100 ] / 1e6,
+                databaseMillis );
+    }
+}
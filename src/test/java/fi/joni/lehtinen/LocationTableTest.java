@@ -0,0 +1,169 @@
+package fi.joni.lehtinen;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/*
+ * Tests share LocationTable.instance, each one uses its own range of user ids.
+ */
+public class LocationTableTest {
+
+    /*
+     * Keeps the values of written records.
+     */
+    private static class Records extends ReplyBuilder {
+        final List<Long> mIds = new ArrayList<>();
+        final List<Double> mCoordinates = new ArrayList<>();
+        final List<Long> mTimes = new ArrayList<>();
+
+        @Override
+        public void addMessage( byte[] message ) {
+        }
+
+        @Override
+        public void beginMessage() {
+        }
+
+        @Override
+        public ReplyBuilder addId( long value ) {
+            mIds.add( value );
+            return this;
+        }
+
+        @Override
+        public ReplyBuilder addCoordinate( double value ) {
+            mCoordinates.add( value );
+            return this;
+        }
+
+        @Override
+        public ReplyBuilder addTime( long value ) {
+            mTimes.add( value );
+            return this;
+        }
+
+        @Override
+        public ReplyBuilder addString( String value ) {
+            return this;
+        }
+
+        @Override
+        public void endRecord() {
+        }
+
+        @Override
+        public void endMessage() {
+        }
+
+        @Override
+        public void clear() {
+            mIds.clear();
+            mCoordinates.clear();
+            mTimes.clear();
+        }
+
+        @Override
+        ByteBuffer toBuffer() {
+            return null;
+        }
+    }
+
+    private static Records read( long userID ) {
+        Records records = new Records();
+        assertTrue( "user " + userID, LocationTable.instance.write( userID, records ) );
+        return records;
+    }
+
+    @Test
+    public void findsEveryUserAfterGrowing() {
+        // Table starts with 1024 slots, this grows it several times
+        long first = 1000000;
+        int users = 10000;
+
+        for( long user = first; user < first + users; user++ )
+            LocationTable.instance.put( user, user + 0.25, user + 0.5, user + 0.75, user * 10, false );
+
+        for( long user = first; user < first + users; user++ ) {
+            Records records = read( user );
+
+            assertEquals( 1, records.mIds.size() );
+            assertEquals( user, (long)records.mIds.get( 0 ) );
+            assertEquals( user + 0.25, records.mCoordinates.get( 0 ), 0 );
+            assertEquals( user + 0.5, records.mCoordinates.get( 1 ), 0 );
+            assertEquals( user + 0.75, records.mCoordinates.get( 2 ), 0 );
+            assertEquals( user * 10, (long)records.mTimes.get( 0 ) );
+        }
+    }
+
+    @Test
+    public void missingUserIsNotWritten() {
+        LocationTable.instance.put( 2000000, 1, 2, 3, 4, false );
+
+        Records records = new Records();
+
+        assertFalse( LocationTable.instance.write( 2000001, records ) );
+        assertFalse( LocationTable.instance.write( Long.MAX_VALUE, records ) );
+        assertTrue( records.mIds.isEmpty() );
+    }
+
+    @Test
+    public void largeIdsAreKept() {
+        long[] users = { Long.MAX_VALUE, Long.MAX_VALUE - 1, 1L << 32, ( 1L << 32 ) + 1024, 3000000 };
+
+        for( int i = 0; i < users.length; i++ )
+            LocationTable.instance.put( users[ i ], i, i, i, i, false );
+
+        for( int i = 0; i < users.length; i++ )
+            assertEquals( i, (long)read( users[ i ] ).mTimes.get( 0 ) );
+    }
+
+    @Test
+    public void onlyNewerKeepsLaterLocation() {
+        long user = 4000000;
+
+        LocationTable.instance.put( user, 1, 1, 1, 100, false );
+
+        // Batch fix recorded earlier doesn't replace stored one
+        LocationTable.instance.put( user, 2, 2, 2, 50, true );
+        assertEquals( 100, (long)read( user ).mTimes.get( 0 ) );
+        assertEquals( 1, read( user ).mCoordinates.get( 0 ), 0 );
+
+        // Recorded at the same time or later does
+        LocationTable.instance.put( user, 3, 3, 3, 100, true );
+        assertEquals( 3, read( user ).mCoordinates.get( 0 ), 0 );
+
+        LocationTable.instance.put( user, 4, 4, 4, 150, true );
+        assertEquals( 150, (long)read( user ).mTimes.get( 0 ) );
+
+        // Live fix always replaces
+        LocationTable.instance.put( user, 5, 5, 5, 10, false );
+        assertEquals( 10, (long)read( user ).mTimes.get( 0 ) );
+        assertEquals( 5, read( user ).mCoordinates.get( 0 ), 0 );
+    }
+
+    @Test
+    public void timeOfStoredLocation() {
+        long user = 6000000;
+
+        assertEquals( Long.MIN_VALUE, LocationTable.instance.getTime( user ) );
+
+        LocationTable.instance.put( user, 1, 1, 1, 100, false );
+        LocationTable.instance.put( user, 2, 2, 2, 50, true );
+
+        assertEquals( 100, LocationTable.instance.getTime( user ) );
+    }
+
+    @Test
+    public void onlyNewerStoresFirstLocation() {
+        LocationTable.instance.put( 5000000, 1, 2, 3, 4, true );
+
+        assertEquals( 4, (long)read( 5000000 ).mTimes.get( 0 ) );
+    }
+}
@@ -0,0 +1,178 @@
+package fi.joni.lehtinen;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LongMapTest {
+
+    // LongMap( 16 ) has 32 slots and doesn't grow before 17 entries
+    private static final int CAPACITY = 32;
+
+    // Same spreading as LongMap uses
+    private static int home( long key ) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int)( hash ^ ( hash >>> 32 ) ) & ( CAPACITY - 1 );
+    }
+
+    // First count positive keys whose home is slot
+    private static long[] keysAt( int slot, int count ) {
+        long[] keys = new long[ count ];
+
+        for( long key = 1, found = 0; found < count; key++ ) {
+            if( home( key ) == slot )
+                keys[ (int)found++ ] = key;
+        }
+
+        return keys;
+    }
+
+    @Test
+    public void collidingKeys() {
+        LongMap<String> map = new LongMap<>( 16 );
+        long[] keys = keysAt( 5, 6 );
+
+        for( long key : keys )
+            map.put( key, "v" + key );
+
+        for( long key : keys )
+            assertEquals( "v" + key, map.get( key ) );
+
+        // Removing from the middle of the run keeps the rest reachable
+        assertEquals( "v" + keys[ 2 ], map.remove( keys[ 2 ] ) );
+        assertNull( map.get( keys[ 2 ] ) );
+        assertNull( map.remove( keys[ 2 ] ) );
+
+        for( int i = 0; i < keys.length; i++ ) {
+            if( i != 2 )
+                assertEquals( "v" + keys[ i ], map.get( keys[ i ] ) );
+        }
+
+        assertEquals( keys.length - 1, map.size() );
+    }
+
+    @Test
+    public void removeWrapsAround() {
+        LongMap<String> map = new LongMap<>( 16 );
+        // Run starts at the last slot and continues from the first
+        long[] last = keysAt( CAPACITY - 1, 3 );
+        long[] first = keysAt( 0, 2 );
+
+        for( long key : last )
+            map.put( key, "v" + key );
+
+        for( long key : first )
+            map.put( key, "v" + key );
+
+        // Entries past the end move back over it
+        assertEquals( "v" + last[ 0 ], map.remove( last[ 0 ] ) );
+
+        for( int i = 1; i < last.length; i++ )
+            assertEquals( "v" + last[ i ], map.get( last[ i ] ) );
+
+        for( long key : first )
+            assertEquals( "v" + key, map.get( key ) );
+
+        // Entry at its home slot must not move before it
+        assertEquals( "v" + last[ 1 ], map.remove( last[ 1 ] ) );
+        assertEquals( "v" + last[ 2 ], map.remove( last[ 2 ] ) );
+
+        for( long key : first )
+            assertEquals( "v" + key, map.get( key ) );
+
+        assertEquals( first.length, map.size() );
+    }
+
+    @Test
+    public void zeroKey() {
+        LongMap<String> map = new LongMap<>( 4 );
+
+        assertNull( map.get( 0 ) );
+        map.put( 0, "zero" );
+        map.put( 0, "again" );
+        assertEquals( "again", map.get( 0 ) );
+        assertEquals( 1, map.size() );
+        assertEquals( "again", map.remove( 0 ) );
+        assertNull( map.remove( 0 ) );
+        assertEquals( 0, map.size() );
+    }
+
+    @Test
+    public void resizeKeepsEntries() {
+        LongMap<Long> map = new LongMap<>( 4 );
+        long tableBytes = map.tableBytes();
+
+        for( long key = 0; key < 10000; key++ )
+            map.put( key * 31, key );
+
+        assertEquals( 10000, map.size() );
+        assertTrue( map.tableBytes() > tableBytes );
+
+        for( long key = 0; key < 10000; key++ )
+            assertEquals( Long.valueOf( key ), map.get( key * 31 ) );
+
+        for( long key = 0; key < 10000; key += 2 )
+            assertEquals( Long.valueOf( key ), map.remove( key * 31 ) );
+
+        for( long key = 0; key < 10000; key++ )
+            assertEquals( key % 2 == 0 ? null : Long.valueOf( key ), map.get( key * 31 ) );
+
+        assertEquals( 5000, map.size() );
+    }
+
+    @Test
+    public void sameAsHashMap() {
+        LongMap<Long> map = new LongMap<>( 4 );
+        Map<Long,Long> expected = new HashMap<>();
+        Random random = new Random( 1 );
+
+        // Small key range so that keys collide and get removed often
+        for( int i = 0; i < 200000; i++ ) {
+            long key = random.nextInt( 512 );
+
+            if( random.nextInt( 3 ) == 0 )
+                assertEquals( expected.remove( key ), map.remove( key ) );
+            else
+                assertEquals( expected.put( key, (long)i ), put( map, key, i ) );
+
+            assertEquals( expected.size(), map.size() );
+        }
+
+        for( long key = 0; key < 512; key++ )
+            assertEquals( expected.get( key ), map.get( key ) );
+    }
+
+    @Test
+    public void evictEmptiesMap() {
+        LongMap<Long> map = new LongMap<>( 16 );
+        Random random = new Random( 2 );
+
+        for( long key = 0; key < 100; key++ )
+            map.put( key, key );
+
+        List<Long> evicted = new ArrayList<>();
+
+        for( Long value; ( value = map.evict( random.nextInt() ) ) != null; )
+            evicted.add( value );
+
+        assertEquals( 100, evicted.size() );
+        assertEquals( 100, new HashSet<>( evicted ).size() );
+        assertEquals( 0, map.size() );
+        assertNull( map.evict( 0 ) );
+    }
+
+    private static Long put( LongMap<Long> map, long key, long value ) {
+        Long previous = map.get( key );
+        map.put( key, value );
+        return previous;
+    }
+}